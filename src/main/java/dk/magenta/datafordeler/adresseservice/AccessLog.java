@@ -0,0 +1,226 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dk.magenta.datafordeler.core.user.DafoUserDetails;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes one structured access log record per completed request to the
+ * dk.magenta.datafordeler.adresseservice.access logger.
+ * Records are handed off through a lock-free ring buffer and written by a background thread,
+ * so request threads never block on logging. Successful requests are sampled
+ * (dafo.adresseservice.accesslog.sampleRate), while failed requests and requests slower than
+ * dafo.adresseservice.accesslog.slowThreshold milliseconds are always logged.
+ */
+@Component
+public class AccessLog implements HandlerInterceptor {
+
+    public static final String REQUEST_ATTRIBUTE_ROWS = AccessLog.class.getName() + ".rows";
+    private static final String REQUEST_ATTRIBUTE_START = AccessLog.class.getName() + ".start";
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${dafo.adresseservice.accesslog.enabled:true}")
+    private boolean enabled;
+
+    @Value("${dafo.adresseservice.accesslog.sampleRate:1.0}")
+    private double sampleRate;
+
+    @Value("${dafo.adresseservice.accesslog.slowThreshold:1000}")
+    private long slowThresholdMillis;
+
+    @Value("${dafo.adresseservice.accesslog.bufferSize:8192}")
+    private int bufferSize;
+
+    private Logger log = LogManager.getLogger(AccessLog.class);
+
+    private Logger accessLog = LogManager.getLogger("dk.magenta.datafordeler.adresseservice.access");
+
+    static class Record {
+        final long timestamp;
+        final String endpoint;
+        final Map<String, String[]> parameters;
+        final String user;
+        final int status;
+        final int rows;
+        final long latency;
+
+        Record(long timestamp, String endpoint, Map<String, String[]> parameters, String user, int status, int rows, long latency) {
+            this.timestamp = timestamp;
+            this.endpoint = endpoint;
+            this.parameters = parameters;
+            this.user = user;
+            this.status = status;
+            this.rows = rows;
+            this.latency = latency;
+        }
+    }
+
+    /**
+     * Bounded multi-producer, single-consumer ring buffer.
+     * Producers claim a sequence number with compare-and-set and then publish into its slot;
+     * the consumer empties slots in sequence order. When full, new records are dropped.
+     */
+    static class RingBuffer {
+        private final AtomicReferenceArray<Record> slots;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head = 0;
+        final LongAdder dropped = new LongAdder();
+
+        RingBuffer(int minimumCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(2, minimumCapacity) - 1) << 1;
+            this.slots = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        boolean offer(Record record) {
+            while (true) {
+                long sequence = this.tail.get();
+                if (sequence - this.head >= this.slots.length()) {
+                    this.dropped.increment();
+                    return false;
+                }
+                if (this.tail.compareAndSet(sequence, sequence + 1)) {
+                    this.slots.lazySet((int) (sequence & this.mask), record);
+                    return true;
+                }
+            }
+        }
+
+        Record poll() {
+            long sequence = this.head;
+            int index = (int) (sequence & this.mask);
+            Record record = this.slots.get(index);
+            if (record != null) {
+                this.slots.lazySet(index, null);
+                this.head = sequence + 1;
+            }
+            return record;
+        }
+    }
+
+    private RingBuffer buffer;
+
+    private Thread writer;
+
+    private volatile boolean running = false;
+
+    @PostConstruct
+    public void start() {
+        if (!this.enabled) {
+            return;
+        }
+        this.buffer = new RingBuffer(this.bufferSize);
+        this.running = true;
+        this.writer = new Thread(this::drain, "adresseservice-accesslog");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        this.running = false;
+        if (this.writer != null) {
+            LockSupport.unpark(this.writer);
+            this.writer.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (this.enabled) {
+            request.setAttribute(REQUEST_ATTRIBUTE_START, System.nanoTime());
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        Object start = request.getAttribute(REQUEST_ATTRIBUTE_START);
+        if (!(start instanceof Long)) {
+            return;
+        }
+        long latency = System.nanoTime() - (Long) start;
+        int status = ex != null ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : response.getStatus();
+        boolean failed = status >= 400;
+        boolean slow = latency >= TimeUnit.MILLISECONDS.toNanos(this.slowThresholdMillis);
+        if (!failed && !slow && ThreadLocalRandom.current().nextDouble() >= this.sampleRate) {
+            return;
+        }
+        Object user = request.getAttribute(AdmissionControl.REQUEST_ATTRIBUTE_USER);
+        Object rows = request.getAttribute(REQUEST_ATTRIBUTE_ROWS);
+        this.buffer.offer(new Record(
+                System.currentTimeMillis(),
+                request.getRequestURI(),
+                new HashMap<>(request.getParameterMap()),
+                user instanceof DafoUserDetails ? AdmissionControl.getUserKey((DafoUserDetails) user) : null,
+                status,
+                rows instanceof Integer ? (Integer) rows : -1,
+                latency
+        ));
+    }
+
+    private void drain() {
+        long reportedDrops = 0;
+        while (this.running) {
+            Record record = this.buffer.poll();
+            if (record == null) {
+                long dropped = this.buffer.dropped.sum();
+                if (dropped != reportedDrops) {
+                    log.warn("Access log buffer full, {} records dropped", dropped - reportedDrops);
+                    reportedDrops = dropped;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            } else {
+                this.write(record);
+            }
+        }
+        Record record;
+        while ((record = this.buffer.poll()) != null) {
+            this.write(record);
+        }
+    }
+
+    private void write(Record record) {
+        try {
+            ObjectNode node = objectMapper.createObjectNode();
+            node.put("tidspunkt", Instant.ofEpochMilli(record.timestamp).toString());
+            node.put("endpoint", record.endpoint);
+            ObjectNode parameters = node.putObject("parametre");
+            for (Map.Entry<String, String[]> parameter : record.parameters.entrySet()) {
+                parameters.put(parameter.getKey(), String.join(",", parameter.getValue()));
+            }
+            node.put("bruger", record.user);
+            node.put("status", record.status);
+            if (record.rows >= 0) {
+                node.put("antal", record.rows);
+            }
+            node.put("varighed_ms", record.latency / 1_000_000.0);
+            accessLog.info(node.toString());
+        } catch (RuntimeException e) {
+            log.error("Could not write access log record", e);
+        }
+    }
+}
@@ -0,0 +1,624 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import dk.magenta.datafordeler.core.database.DataItem;
+import dk.magenta.datafordeler.core.database.Identification;
+import dk.magenta.datafordeler.core.database.QueryManager;
+import dk.magenta.datafordeler.gladdrreg.data.address.AddressData;
+import dk.magenta.datafordeler.gladdrreg.data.address.AddressEntity;
+import dk.magenta.datafordeler.gladdrreg.data.bnumber.BNumberData;
+import dk.magenta.datafordeler.gladdrreg.data.bnumber.BNumberEntity;
+import dk.magenta.datafordeler.gladdrreg.data.locality.LocalityData;
+import dk.magenta.datafordeler.gladdrreg.data.locality.LocalityEntity;
+import dk.magenta.datafordeler.gladdrreg.data.locality.LocalityQuery;
+import dk.magenta.datafordeler.gladdrreg.data.road.RoadData;
+import dk.magenta.datafordeler.gladdrreg.data.road.RoadEntity;
+import org.hibernate.Session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Immutable view of the current address hierarchy: municipalities, localities, roads and addresses
+ * (with their B-number resolved). Can be loaded from the database or from a binary snapshot.
+ * The hierarchy is held in its snapshot encoding, and lookups read directly from the (memory-mapped) buffer:
+ * each of the localities, roads and addresses sections has a sorted table of parent uuids with the range of
+ * their children, and a table of record offsets, so only the records returned by a lookup are decoded.
+ */
+public class AddressHierarchy {
+
+    private static final int MAGIC = 0x41445253; // "ADRS"
+    static final int FORMAT_VERSION = 2;
+
+    // magic, format version, data version, and the offsets of the localities, roads and addresses sections
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 3 * 4;
+    // parent uuid, first record and record count
+    private static final int GROUP_SIZE = 8 + 8 + 4 + 4;
+
+    public static class Locality {
+        final UUID uuid;
+        final UUID municipality;
+        final String name;
+        final String abbreviation;
+
+        Locality(UUID uuid, UUID municipality, String name, String abbreviation) {
+            this.uuid = uuid;
+            this.municipality = municipality;
+            this.name = name;
+            this.abbreviation = abbreviation;
+        }
+    }
+
+    public static class Road {
+        final UUID uuid;
+        final UUID locality;
+        final int code;
+        final String name;
+        final String alternateName;
+        final String cprName;
+        final String shortName;
+
+        Road(UUID uuid, UUID locality, int code, String name, String alternateName, String cprName, String shortName) {
+            this.uuid = uuid;
+            this.locality = locality;
+            this.code = code;
+            this.name = name;
+            this.alternateName = alternateName;
+            this.cprName = cprName;
+            this.shortName = shortName;
+        }
+    }
+
+    public static class Address {
+        final UUID uuid;
+        final UUID road;
+        final String houseNumber;
+        final String floor;
+        final String door;
+        final Boolean residence;
+        final String bNumber;
+        final String bCallName;
+
+        Address(UUID uuid, UUID road, String houseNumber, String floor, String door, Boolean residence, String bNumber, String bCallName) {
+            this.uuid = uuid;
+            this.road = road;
+            this.houseNumber = houseNumber;
+            this.floor = floor;
+            this.door = door;
+            this.residence = residence;
+            this.bNumber = bNumber;
+            this.bCallName = bCallName;
+        }
+    }
+
+    private interface RecordReader<T> {
+        T read(ByteBuffer record);
+    }
+
+    /**
+     * One section of the buffer: a table of parent groups sorted by uuid, and a table of record offsets
+     */
+    private static class Section<T> {
+        private final ByteBuffer buffer;
+        private final RecordReader<T> reader;
+        private final int groupCount;
+        private final int groupsStart;
+        private final int recordCount;
+        private final int offsetsStart;
+
+        Section(ByteBuffer buffer, int start, RecordReader<T> reader) throws IOException {
+            this.buffer = buffer;
+            this.reader = reader;
+            if (start < HEADER_SIZE || start > buffer.limit() - 4) {
+                throw new IOException("Invalid address snapshot section offset " + start);
+            }
+            this.groupCount = buffer.getInt(start);
+            this.groupsStart = start + 4;
+            long countPosition = (long) this.groupsStart + (long) this.groupCount * GROUP_SIZE;
+            if (this.groupCount < 0 || countPosition > buffer.limit() - 4) {
+                throw new IOException("Invalid address snapshot section at " + start);
+            }
+            this.recordCount = buffer.getInt((int) countPosition);
+            this.offsetsStart = (int) countPosition + 4;
+            if (this.recordCount < 0 || (long) this.offsetsStart + 4L * this.recordCount > buffer.limit()) {
+                throw new IOException("Invalid address snapshot section at " + start);
+            }
+        }
+
+        int size() {
+            return this.recordCount;
+        }
+
+        T get(int index) {
+            ByteBuffer record = this.buffer.duplicate();
+            record.position(this.buffer.getInt(this.offsetsStart + 4 * index));
+            return this.reader.read(record);
+        }
+
+        List<T> getAll() {
+            return this.getRange(0, this.recordCount);
+        }
+
+        /**
+         * @return The records whose parent is the given uuid, found by binary search in the group table
+         */
+        List<T> getChildren(UUID parent) {
+            if (parent == null) {
+                return Collections.emptyList();
+            }
+            long msb = parent.getMostSignificantBits();
+            long lsb = parent.getLeastSignificantBits();
+            int low = 0;
+            int high = this.groupCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int position = this.groupsStart + middle * GROUP_SIZE;
+                int comparison = compare(this.buffer.getLong(position), this.buffer.getLong(position + 8), msb, lsb);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    return this.getRange(this.buffer.getInt(position + 16), this.buffer.getInt(position + 20));
+                }
+            }
+            return Collections.emptyList();
+        }
+
+        private List<T> getRange(int first, int count) {
+            ArrayList<T> records = new ArrayList<>(count);
+            for (int i = first; i < first + count; i++) {
+                records.add(this.get(i));
+            }
+            return records;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final long dataVersion;
+    private final Map<Integer, UUID> municipalities;
+    private final Section<Locality> localities;
+    private final Section<Road> roads;
+    private final Section<Address> addresses;
+
+    private AddressHierarchy(ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < HEADER_SIZE + 4 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an address snapshot");
+        }
+        int formatVersion = buffer.getInt(4);
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported address snapshot format version " + formatVersion);
+        }
+        this.buffer = buffer;
+        this.dataVersion = buffer.getLong(8);
+
+        // Municipalities are few, and are kept on the heap
+        int count = buffer.getInt(HEADER_SIZE);
+        if (count < 0 || HEADER_SIZE + 4 + 20L * count > buffer.limit()) {
+            throw new IOException("Invalid address snapshot municipality table");
+        }
+        HashMap<Integer, UUID> municipalities = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            int position = HEADER_SIZE + 4 + 20 * i;
+            municipalities.put(buffer.getInt(position), new UUID(buffer.getLong(position + 4), buffer.getLong(position + 12)));
+        }
+        this.municipalities = Collections.unmodifiableMap(municipalities);
+
+        this.localities = new Section<>(buffer, buffer.getInt(16), record -> new Locality(
+                readUUID(record), readUUID(record), readString(record), readString(record)
+        ));
+        this.roads = new Section<>(buffer, buffer.getInt(20), record -> new Road(
+                readUUID(record), readUUID(record), record.getInt(),
+                readString(record), readString(record), readString(record), readString(record)
+        ));
+        this.addresses = new Section<>(buffer, buffer.getInt(24), record -> {
+            UUID uuid = readUUID(record);
+            UUID road = readUUID(record);
+            String houseNumber = readString(record);
+            String floor = readString(record);
+            String door = readString(record);
+            byte residence = record.get();
+            return new Address(
+                    uuid, road, houseNumber, floor, door, residence == -1 ? null : residence == 1,
+                    readString(record), readString(record)
+            );
+        });
+    }
+
+    /**
+     * Builds a hierarchy by encoding the given objects in the snapshot format, on the heap
+     */
+    static AddressHierarchy create(long dataVersion, Map<Integer, UUID> municipalities, List<Locality> localities, List<Road> roads, List<Address> addresses) {
+        try {
+            return new AddressHierarchy(ByteBuffer.wrap(encode(dataVersion, municipalities, localities, roads, addresses)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long getDataVersion() {
+        return this.dataVersion;
+    }
+
+    public Map<Integer, UUID> getMunicipalities() {
+        return this.municipalities;
+    }
+
+    public List<Locality> getLocalities() {
+        return this.localities.getAll();
+    }
+
+    public List<Road> getRoads() {
+        return this.roads.getAll();
+    }
+
+    public List<Locality> getLocalities(UUID municipality) {
+        return this.localities.getChildren(municipality);
+    }
+
+    public List<Road> getRoads(UUID locality) {
+        return this.roads.getChildren(locality);
+    }
+
+    public List<Address> getAddresses() {
+        return this.addresses.getAll();
+    }
+
+    public List<Address> getAddresses(UUID road) {
+        return this.addresses.getChildren(road);
+    }
+
+
+    /**
+     * Loads the current hierarchy from the database
+     * @param session Open database session
+     * @param dataVersion Import version of the data being loaded
+     */
+    public static AddressHierarchy load(Session session, long dataVersion) {
+        HashMap<Integer, UUID> municipalities = AdresseService.getMunicipalities(session);
+        List<Locality> localities = loadLocalities(session, municipalities.values());
+        List<Road> roads = loadRoads(session);
+        List<Address> addresses = loadAddresses(session, loadBNumbers(session));
+        return create(dataVersion, municipalities, localities, roads, addresses);
+    }
+
+    /**
+     * Loads the code and call name of every B-number from the database, by uuid
+     */
+    static HashMap<UUID, String[]> loadBNumbers(Session session) {
+        HashMap<UUID, String[]> bNumbers = new HashMap<>();
+        for (BNumberEntity bNumberEntity : QueryManager.getAllEntities(session, BNumberEntity.class)) {
+            String[] codeAndCallName = new String[2];
+            for (DataItem dataItem : bNumberEntity.getCurrent()) {
+                BNumberData data = (BNumberData) dataItem;
+                if (data.getCode() != null) {
+                    codeAndCallName[0] = data.getCode();
+                }
+                if (data.getCallname() != null && !data.getCallname().isEmpty()) {
+                    codeAndCallName[1] = data.getCallname();
+                }
+            }
+            bNumbers.put(bNumberEntity.getUUID(), codeAndCallName);
+        }
+        return bNumbers;
+    }
+
+    /**
+     * Loads all addresses that have current data from the database
+     * @param bNumbers Code and call name of B-numbers by uuid, as made by loadBNumbers;
+     *                 may be empty if the B-numbers are not needed
+     */
+    static List<Address> loadAddresses(Session session, Map<UUID, String[]> bNumbers) {
+        ArrayList<Address> addresses = new ArrayList<>();
+        for (AddressEntity addressEntity : QueryManager.getAllEntities(session, AddressEntity.class)) {
+            UUID road = null;
+            String houseNumber = null, floor = null, door = null, bNumber = null, bCallName = null;
+            Boolean residence = null;
+            boolean current = false;
+            for (DataItem dataItem : addressEntity.getCurrent()) {
+                AddressData data = (AddressData) dataItem;
+                current = true;
+                if (data.getRoad() != null) {
+                    road = data.getRoad().getUuid();
+                }
+                if (data.getHouseNumber() != null) {
+                    houseNumber = data.getHouseNumber();
+                }
+                if (data.getFloor() != null && !data.getFloor().isEmpty()) {
+                    floor = data.getFloor();
+                }
+                if (data.getRoom() != null && !data.getRoom().isEmpty()) {
+                    door = data.getRoom();
+                }
+                if (data.getResidence() != null) {
+                    residence = data.getResidence();
+                }
+                Identification bNumberIdentification = data.getbNumber();
+                if (bNumberIdentification != null && bNumbers.containsKey(bNumberIdentification.getUuid())) {
+                    String[] codeAndCallName = bNumbers.get(bNumberIdentification.getUuid());
+                    bNumber = codeAndCallName[0];
+                    bCallName = codeAndCallName[1];
+                }
+            }
+            if (current) {
+                addresses.add(new Address(addressEntity.getUUID(), road, houseNumber, floor, door, residence, bNumber, bCallName));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Loads the current localities in the given municipalities from the database
+     */
+    static List<Locality> loadLocalities(Session session, Collection<UUID> municipalities) {
+        OffsetDateTime now = OffsetDateTime.now();
+        ArrayList<Locality> localities = new ArrayList<>();
+        for (UUID municipality : municipalities) {
+            LocalityQuery query = new LocalityQuery();
+            query.setRegistrationFrom(now);
+            query.setRegistrationTo(now);
+            query.setEffectFrom(now);
+            query.setEffectTo(now);
+            query.setPage(1);
+            query.setPageSize(Integer.MAX_VALUE);
+            query.setMunicipality(municipality.toString());
+            for (LocalityEntity localityEntity : QueryManager.getAllEntities(session, query, LocalityEntity.class)) {
+                String name = null;
+                String abbreviation = null;
+                for (DataItem dataItem : localityEntity.getCurrent()) {
+                    LocalityData data = (LocalityData) dataItem;
+                    if (data.getName() != null) {
+                        name = data.getName();
+                    }
+                    if (data.getAbbrev() != null) {
+                        abbreviation = data.getAbbrev();
+                    }
+                }
+                localities.add(new Locality(localityEntity.getUUID(), municipality, name, abbreviation));
+            }
+        }
+        return localities;
+    }
+
+    /**
+     * Loads all roads that have current data from the database
+     */
+    static List<Road> loadRoads(Session session) {
+        ArrayList<Road> roads = new ArrayList<>();
+        for (RoadEntity roadEntity : QueryManager.getAllEntities(session, RoadEntity.class)) {
+            UUID locality = null;
+            int code = 0;
+            String name = null, alternateName = null, cprName = null, shortName = null;
+            boolean current = false;
+            for (DataItem dataItem : roadEntity.getCurrent()) {
+                RoadData data = (RoadData) dataItem;
+                current = true;
+                if (data.getLocation() != null) {
+                    locality = data.getLocation().getUuid();
+                }
+                if (data.getCode() != 0) {
+                    code = data.getCode();
+                }
+                if (data.getName() != null) {
+                    name = data.getName();
+                }
+                if (data.getAlternateName() != null) {
+                    alternateName = data.getAlternateName();
+                }
+                if (data.getCprName() != null) {
+                    cprName = data.getCprName();
+                }
+                if (data.getShortName() != null) {
+                    shortName = data.getShortName();
+                }
+            }
+            if (current) {
+                roads.add(new Road(roadEntity.getUUID(), locality, code, name, alternateName, cprName, shortName));
+            }
+        }
+        return roads;
+    }
+
+
+    /**
+     * Writes the hierarchy in the binary snapshot format
+     */
+    public void write(DataOutputStream out) throws IOException {
+        ByteBuffer contents = this.buffer.duplicate();
+        contents.position(0);
+        byte[] chunk = new byte[65536];
+        while (contents.hasRemaining()) {
+            int length = Math.min(chunk.length, contents.remaining());
+            contents.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    /**
+     * Opens a hierarchy on a (memory-mapped) snapshot buffer. Only the header and municipalities are read here;
+     * everything else is read from the buffer when looked up, so the buffer must stay valid and unchanged.
+     * @throws IOException if the buffer does not hold a snapshot in the current format
+     */
+    public static AddressHierarchy read(ByteBuffer buffer) throws IOException {
+        return new AddressHierarchy(buffer);
+    }
+
+    private static byte[] encode(long dataVersion, Map<Integer, UUID> municipalities, List<Locality> localities, List<Road> roads, List<Address> addresses) throws IOException {
+        byte[] localitySection = encodeSection(localities, locality -> locality.municipality, (out, locality) -> {
+            writeUUID(out, locality.uuid);
+            writeUUID(out, locality.municipality);
+            writeString(out, locality.name);
+            writeString(out, locality.abbreviation);
+        });
+        byte[] roadSection = encodeSection(roads, road -> road.locality, (out, road) -> {
+            writeUUID(out, road.uuid);
+            writeUUID(out, road.locality);
+            out.writeInt(road.code);
+            writeString(out, road.name);
+            writeString(out, road.alternateName);
+            writeString(out, road.cprName);
+            writeString(out, road.shortName);
+        });
+        byte[] addressSection = encodeSection(addresses, address -> address.road, (out, address) -> {
+            writeUUID(out, address.uuid);
+            writeUUID(out, address.road);
+            writeString(out, address.houseNumber);
+            writeString(out, address.floor);
+            writeString(out, address.door);
+            out.writeByte(address.residence == null ? -1 : (address.residence ? 1 : 0));
+            writeString(out, address.bNumber);
+            writeString(out, address.bCallName);
+        });
+
+        int localitiesStart = HEADER_SIZE + 4 + 20 * municipalities.size();
+        int roadsStart = localitiesStart + localitySection.length;
+        int addressesStart = roadsStart + roadSection.length;
+        ByteBuffer buffer = ByteBuffer.allocate(addressesStart + addressSection.length);
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putLong(dataVersion);
+        buffer.putInt(localitiesStart);
+        buffer.putInt(roadsStart);
+        buffer.putInt(addressesStart);
+        buffer.putInt(municipalities.size());
+        for (Map.Entry<Integer, UUID> municipality : municipalities.entrySet()) {
+            buffer.putInt(municipality.getKey());
+            buffer.putLong(municipality.getValue().getMostSignificantBits());
+            buffer.putLong(municipality.getValue().getLeastSignificantBits());
+        }
+        relocate(localitySection, localitiesStart);
+        relocate(roadSection, roadsStart);
+        relocate(addressSection, addressesStart);
+        buffer.put(localitySection);
+        buffer.put(roadSection);
+        buffer.put(addressSection);
+        return buffer.array();
+    }
+
+    private interface RecordWriter<T> {
+        void write(DataOutputStream out, T record) throws IOException;
+    }
+
+    /**
+     * Encodes a section with its records ordered by parent, and offsets relative to the start of the section.
+     * Records without a parent are placed last, outside any group.
+     */
+    private static <T> byte[] encodeSection(List<T> records, Function<T, UUID> parent, RecordWriter<T> writer) throws IOException {
+        ArrayList<T> sorted = new ArrayList<>(records);
+        sorted.sort((a, b) -> {
+            UUID parentA = parent.apply(a);
+            UUID parentB = parent.apply(b);
+            if (parentA == null || parentB == null) {
+                return Boolean.compare(parentA == null, parentB == null);
+            }
+            return compare(parentA.getMostSignificantBits(), parentA.getLeastSignificantBits(), parentB.getMostSignificantBits(), parentB.getLeastSignificantBits());
+        });
+
+        ArrayList<UUID> groupParents = new ArrayList<>();
+        ArrayList<int[]> groupRanges = new ArrayList<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            UUID recordParent = parent.apply(sorted.get(i));
+            if (recordParent == null) {
+                break;
+            }
+            if (groupParents.isEmpty() || !groupParents.get(groupParents.size() - 1).equals(recordParent)) {
+                groupParents.add(recordParent);
+                groupRanges.add(new int[] {i, 0});
+            }
+            groupRanges.get(groupRanges.size() - 1)[1]++;
+        }
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(recordBytes);
+        int[] offsets = new int[sorted.size()];
+        for (int i = 0; i < sorted.size(); i++) {
+            offsets[i] = recordOut.size();
+            writer.write(recordOut, sorted.get(i));
+        }
+        recordOut.flush();
+
+        int recordsStart = 4 + GROUP_SIZE * groupParents.size() + 4 + 4 * sorted.size();
+        ByteArrayOutputStream section = new ByteArrayOutputStream(recordsStart + recordBytes.size());
+        DataOutputStream out = new DataOutputStream(section);
+        out.writeInt(groupParents.size());
+        for (int i = 0; i < groupParents.size(); i++) {
+            out.writeLong(groupParents.get(i).getMostSignificantBits());
+            out.writeLong(groupParents.get(i).getLeastSignificantBits());
+            out.writeInt(groupRanges.get(i)[0]);
+            out.writeInt(groupRanges.get(i)[1]);
+        }
+        out.writeInt(sorted.size());
+        for (int offset : offsets) {
+            out.writeInt(recordsStart + offset);
+        }
+        recordBytes.writeTo(out);
+        out.flush();
+        return section.toByteArray();
+    }
+
+    /**
+     * Turns the record offsets of an encoded section into absolute offsets, once its position is known
+     */
+    private static void relocate(byte[] section, int start) {
+        ByteBuffer buffer = ByteBuffer.wrap(section);
+        int groupCount = buffer.getInt(0);
+        int countPosition = 4 + GROUP_SIZE * groupCount;
+        int recordCount = buffer.getInt(countPosition);
+        for (int i = 0; i < recordCount; i++) {
+            int position = countPosition + 4 + 4 * i;
+            buffer.putInt(position, buffer.getInt(position) + start);
+        }
+    }
+
+    private static int compare(long msbA, long lsbA, long msbB, long lsbB) {
+        int comparison = Long.compare(msbA, msbB);
+        return comparison != 0 ? comparison : Long.compare(lsbA, lsbB);
+    }
+
+    private static void writeUUID(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeBoolean(uuid != null);
+        if (uuid != null) {
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        }
+    }
+
+    private static UUID readUUID(ByteBuffer buffer) {
+        if (buffer.get() == 0) {
+            return null;
+        }
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,123 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Immutable hash index of current addresses by municipality code, road code and house number, as used by CPR,
+ * so address tuples can be matched without querying the database.
+ * Each house number holds the uuids of its addresses, with their floor and door.
+ */
+public class AddressMatchIndex {
+
+    public static final AddressMatchIndex EMPTY = new AddressMatchIndex(RoadCodeIndex.EMPTY, Collections.emptyList());
+
+    private static final class HouseKey {
+        final long roadKey;
+        final String houseNumber;
+
+        HouseKey(long roadKey, String houseNumber) {
+            this.roadKey = roadKey;
+            this.houseNumber = houseNumber;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            HouseKey that = (HouseKey) o;
+            return this.roadKey == that.roadKey && this.houseNumber.equals(that.houseNumber);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(this.roadKey) * 31 + this.houseNumber.hashCode();
+        }
+    }
+
+    private static final class Candidate {
+        final UUID uuid;
+        final String floor;
+        final String door;
+
+        Candidate(UUID uuid, String floor, String door) {
+            this.uuid = uuid;
+            this.floor = floor;
+            this.door = door;
+        }
+    }
+
+    private final HashMap<HouseKey, List<Candidate>> houses = new HashMap<>();
+
+    /**
+     * @param roadIndex Roads by municipality code and road code; addresses on roads not in it are left out
+     * @param addresses Current addresses
+     */
+    public AddressMatchIndex(RoadCodeIndex roadIndex, Collection<AddressHierarchy.Address> addresses) {
+        HashMap<UUID, Long> roadKeys = new HashMap<>();
+        roadIndex.forEach((roadKey, road) -> roadKeys.put(road.uuid, roadKey));
+        for (AddressHierarchy.Address address : addresses) {
+            Long roadKey = address.road != null ? roadKeys.get(address.road) : null;
+            String houseNumber = normalize(address.houseNumber);
+            if (roadKey != null && houseNumber != null) {
+                this.houses.computeIfAbsent(new HouseKey(roadKey, houseNumber), k -> new ArrayList<>())
+                        .add(new Candidate(address.uuid, normalize(address.floor), normalize(address.door)));
+            }
+        }
+    }
+
+    /**
+     * Finds the addresses at one of the given house numbers with exactly the given floor and door.
+     * If there are none, and floor or door was not given, the addresses matching the parts that were given are returned,
+     * so a house number without floor and door finds all apartments in the house.
+     * @param houseNumbers Spellings of the house number to look for
+     * @param floor Floor, or null if not given
+     * @param door Door, or null if not given
+     * @return Uuids of the addresses found
+     */
+    public Collection<UUID> find(int municipalityCode, int roadCode, Collection<String> houseNumbers, String floor, String door) {
+        long roadKey = RoadCodeIndex.pack(municipalityCode, roadCode);
+        floor = normalize(floor);
+        door = normalize(door);
+        ArrayList<Candidate> candidates = new ArrayList<>();
+        for (String houseNumber : houseNumbers) {
+            String normalized = normalize(houseNumber);
+            if (normalized != null) {
+                candidates.addAll(this.houses.getOrDefault(new HouseKey(roadKey, normalized), Collections.emptyList()));
+            }
+        }
+        LinkedHashSet<UUID> exact = new LinkedHashSet<>();
+        for (Candidate candidate : candidates) {
+            if (Objects.equals(candidate.floor, floor) && Objects.equals(candidate.door, door)) {
+                exact.add(candidate.uuid);
+            }
+        }
+        if (!exact.isEmpty() || (floor != null && door != null)) {
+            return exact;
+        }
+        LinkedHashSet<UUID> partial = new LinkedHashSet<>();
+        for (Candidate candidate : candidates) {
+            if ((floor == null || floor.equals(candidate.floor)) && (door == null || door.equals(candidate.door))) {
+                partial.add(candidate.uuid);
+            }
+        }
+        return partial;
+    }
+
+    public int size() {
+        return this.houses.size();
+    }
+
+    static String normalize(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        return value.trim().toUpperCase();
+    }
+}
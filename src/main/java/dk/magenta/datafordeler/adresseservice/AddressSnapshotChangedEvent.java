@@ -0,0 +1,21 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published when the address snapshot has been rebuilt and the new hierarchy is being served.
+ * Listeners should refresh state derived from the snapshot.
+ */
+public class AddressSnapshotChangedEvent extends ApplicationEvent {
+
+    private final long dataVersion;
+
+    public AddressSnapshotChangedEvent(Object source, long dataVersion) {
+        super(source);
+        this.dataVersion = dataVersion;
+    }
+
+    public long getDataVersion() {
+        return this.dataVersion;
+    }
+}
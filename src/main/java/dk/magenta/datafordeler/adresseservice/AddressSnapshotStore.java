@@ -0,0 +1,204 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import dk.magenta.datafordeler.core.database.Registration;
+import dk.magenta.datafordeler.core.database.SessionManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a persisted snapshot of the address hierarchy on local disk.
+ * On startup the snapshot is memory-mapped and served immediately, while a background task
+ * compares it to the import version of the database and rebuilds it when they differ.
+ * Lookups read from the mapped file, so the hierarchy takes up page cache rather than heap.
+ * An {@link AddressSnapshotChangedEvent} is published each time a rebuilt hierarchy is installed.
+ */
+@Component
+public class AddressSnapshotStore {
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Value("${dafo.adresseservice.snapshot.enabled:false}")
+    private boolean enabled;
+
+    @Value("${dafo.adresseservice.snapshot.path:adresseservice.snapshot}")
+    private String path;
+
+    @Value("${dafo.adresseservice.snapshot.revalidateInterval:300}")
+    private int revalidateIntervalSeconds;
+
+    private Logger log = LogManager.getLogger(AddressSnapshotStore.class);
+
+    private volatile AddressHierarchy hierarchy = null;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        if (!this.enabled) {
+            return;
+        }
+        Path file = Paths.get(this.path);
+        if (Files.isRegularFile(file)) {
+            try {
+                this.hierarchy = read(file);
+                log.info("Loaded address snapshot {} with data version {}", file, this.hierarchy.getDataVersion());
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not load address snapshot " + file + ", it will be rebuilt", e);
+            }
+        }
+    }
+
+    /**
+     * Starts revalidating once the context is refreshed, so the listeners of rebuilds are registered
+     */
+    @EventListener
+    public synchronized void onContextRefreshed(ContextRefreshedEvent event) {
+        if (!this.enabled || this.scheduler != null) {
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "adresseservice-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::revalidate, 0, this.revalidateIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * @return The current hierarchy, or null if snapshots are disabled or not yet available
+     */
+    public AddressHierarchy getHierarchy() {
+        return this.hierarchy;
+    }
+
+    /**
+     * Rebuilds the hierarchy and rewrites the snapshot if the database holds a different import version
+     */
+    public void revalidate() {
+        AddressHierarchy current = this.hierarchy;
+        try {
+            Session session = sessionManager.getSessionFactory().openSession();
+            try {
+                long dataVersion = getDataVersion(session);
+                if (current != null && current.getDataVersion() == dataVersion) {
+                    return;
+                }
+                AddressHierarchy rebuilt = AddressHierarchy.load(session, dataVersion);
+                this.hierarchy = rebuilt;
+                Path file = Paths.get(this.path);
+                write(rebuilt, file);
+                // Serve from the mapped file, so the heap copy can be collected
+                this.hierarchy = read(file);
+                log.info("Rebuilt address snapshot with data version {}", dataVersion);
+            } finally {
+                session.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Address snapshot revalidation failed", e);
+        }
+        AddressHierarchy installed = this.hierarchy;
+        if (installed != current) {
+            // Published after the session is closed, as listeners may open their own
+            try {
+                this.eventPublisher.publishEvent(new AddressSnapshotChangedEvent(this, installed.getDataVersion()));
+            } catch (RuntimeException e) {
+                log.error("Refreshing state derived from the address snapshot failed", e);
+            }
+        }
+    }
+
+    /**
+     * Revalidate right away when data has been imported, on this or another node
+     */
+    @EventListener
+    public void onDataVersionChanged(DataVersionChangedEvent event) {
+        if (this.enabled && this.scheduler != null) {
+            this.scheduler.execute(this::revalidate);
+        }
+    }
+
+    /**
+     * Computes the import version of the database from the count and highest id of each registration table,
+     * and the latest registration start and end times.
+     * Any import that adds or removes registrations, or closes existing ones, changes the version.
+     */
+    static long getDataVersion(Session session) {
+        long version = 17;
+        for (Class<? extends Registration> registrationClass : GladdrregRegistrations.ALL) {
+            Object[] result = (Object[]) session.createQuery(
+                    "SELECT count(r), max(r.id), max(r.registrationFrom), max(r.registrationTo) " +
+                            "FROM " + registrationClass.getCanonicalName() + " r"
+            ).uniqueResult();
+            long count = result[0] != null ? ((Number) result[0]).longValue() : 0;
+            long maxId = result[1] != null ? ((Number) result[1]).longValue() : 0;
+            version = 31 * version + count;
+            version = 31 * version + maxId;
+            version = 31 * version + epochMillis(result[2]);
+            version = 31 * version + epochMillis(result[3]);
+        }
+        return version;
+    }
+
+    private static long epochMillis(Object time) {
+        return time instanceof OffsetDateTime ? ((OffsetDateTime) time).toInstant().toEpochMilli() : 0;
+    }
+
+    private static AddressHierarchy read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return AddressHierarchy.read(buffer);
+        }
+    }
+
+    private static void write(AddressHierarchy hierarchy, Path file) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                hierarchy.write(out);
+            }
+            Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
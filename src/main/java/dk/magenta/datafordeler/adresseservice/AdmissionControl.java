@@ -0,0 +1,268 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import dk.magenta.datafordeler.core.exception.DataFordelerException;
+import dk.magenta.datafordeler.core.user.DafoUserDetails;
+import dk.magenta.datafordeler.core.user.DafoUserManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-user admission control for the address endpoints.
+ * Each combination of DAFO user and endpoint gets a token bucket and a concurrency cap,
+ * configured with dafo.adresseservice.admission.[endpoint.]rate, .burst and .concurrency
+ * (requests per second, bucket size and simultaneous requests; 0 means unlimited).
+ * Requests over the limit are answered immediately with 429 and a Retry-After header.
+ * Buckets that have been idle for dafo.adresseservice.admission.idleTimeout seconds are dropped,
+ * along with their usage counts.
+ */
+@Component
+public class AdmissionControl implements HandlerInterceptor {
+
+    public static final String REQUEST_ATTRIBUTE_USER = AdmissionControl.class.getName() + ".user";
+    private static final String REQUEST_ATTRIBUTE_BUCKET = AdmissionControl.class.getName() + ".bucket";
+    private static final String CONFIG_PREFIX = "dafo.adresseservice.admission.";
+
+    @Autowired
+    private DafoUserManager dafoUserManager;
+
+    @Autowired
+    private Environment environment;
+
+    @Value("${dafo.adresseservice.admission.idleTimeout:600}")
+    private int idleTimeoutSeconds;
+
+    private Logger log = LogManager.getLogger(AdmissionControl.class);
+
+    private static class Limit {
+        final long interval;
+        final long tolerance;
+        final int concurrency;
+
+        Limit(double rate, int burst, int concurrency) {
+            this.interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+            this.tolerance = this.interval * Math.max(1, burst);
+            this.concurrency = concurrency;
+        }
+    }
+
+    /**
+     * Token bucket implemented as a generic cell rate algorithm: the whole bucket state
+     * is the theoretical arrival time of the next request, updated with compare-and-set.
+     */
+    static class Bucket {
+        final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+        final AtomicInteger active = new AtomicInteger();
+        final LongAdder accepted = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final AtomicLong lastUsed = new AtomicLong(System.nanoTime());
+    }
+
+    private final ConcurrentHashMap<String, Limit> limits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Bucket>> buckets = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "adresseservice-admission");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, this.idleTimeoutSeconds / 2);
+        this.scheduler.scheduleWithFixedDelay(() -> this.expireIdle(System.nanoTime()), interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets the user of a request, looking it up only once per request.
+     * The lookup is recorded as the user phase of the request.
+     */
+    public DafoUserDetails getUser(HttpServletRequest request) throws DataFordelerException {
+        Object user = request.getAttribute(REQUEST_ATTRIBUTE_USER);
+        if (user instanceof DafoUserDetails) {
+            return (DafoUserDetails) user;
+        }
+        DafoUserDetails userDetails;
+        try (PhaseEvent userEvent = PhaseEvent.begin(PhaseEvent.USER)) {
+            userDetails = dafoUserManager.getUserFromRequest(request);
+        }
+        request.setAttribute(REQUEST_ATTRIBUTE_USER, userDetails);
+        return userDetails;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        DafoUserDetails user = this.getUser(request);
+        String endpoint = getEndpoint(request);
+        Limit limit = this.limits.computeIfAbsent(endpoint, this::loadLimit);
+        long now = System.nanoTime();
+        // Find the bucket and enter it while holding the user's entry, so expireIdle cannot drop it in between.
+        // Check concurrency first, so a request rejected for it does not use up a token
+        Bucket[] found = new Bucket[1];
+        boolean[] entered = new boolean[1];
+        this.buckets.compute(getUserKey(user), (key, userBuckets) -> {
+            if (userBuckets == null) {
+                userBuckets = new ConcurrentHashMap<>();
+            }
+            Bucket userBucket = userBuckets.computeIfAbsent(endpoint, k -> new Bucket());
+            userBucket.lastUsed.set(now);
+            entered[0] = tryEnter(userBucket, limit);
+            found[0] = userBucket;
+            return userBuckets;
+        });
+        Bucket bucket = found[0];
+        long wait;
+        if (!entered[0]) {
+            wait = TimeUnit.SECONDS.toNanos(1);
+        } else {
+            wait = tryTake(bucket, limit, now);
+            if (wait > 0) {
+                bucket.active.decrementAndGet();
+            }
+        }
+        if (wait > 0) {
+            bucket.rejected.increment();
+            long retryAfter = Math.max(1, (wait + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+            log.debug("Rejecting request to {} from {}, retry after {} s", endpoint, getUserKey(user), retryAfter);
+            response.setStatus(429);
+            response.setHeader("Retry-After", Long.toString(retryAfter));
+            return false;
+        }
+        bucket.accepted.increment();
+        request.setAttribute(REQUEST_ATTRIBUTE_BUCKET, bucket);
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        Object bucket = request.getAttribute(REQUEST_ATTRIBUTE_BUCKET);
+        if (bucket instanceof Bucket) {
+            ((Bucket) bucket).active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Takes a token from the bucket
+     * @return 0 if a token was available, otherwise the number of nanoseconds until one is
+     */
+    private static long tryTake(Bucket bucket, Limit limit, long now) {
+        if (limit.interval == 0) {
+            return 0;
+        }
+        while (true) {
+            long arrival = bucket.theoreticalArrival.get();
+            long next = Math.max(arrival, now) + limit.interval;
+            long excess = next - now - limit.tolerance;
+            if (excess > 0) {
+                return excess;
+            }
+            if (bucket.theoreticalArrival.compareAndSet(arrival, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private static boolean tryEnter(Bucket bucket, Limit limit) {
+        while (true) {
+            int active = bucket.active.get();
+            if (limit.concurrency > 0 && active >= limit.concurrency) {
+                return false;
+            }
+            if (bucket.active.compareAndSet(active, active + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drops buckets that have had no requests for the idle timeout, and have no active requests
+     * and a full set of tokens, so dropping them changes no limit
+     */
+    void expireIdle(long now) {
+        long idleTimeout = TimeUnit.SECONDS.toNanos(this.idleTimeoutSeconds);
+        for (String userKey : this.buckets.keySet()) {
+            // Buckets are only added and entered while holding the user's entry, as done here
+            this.buckets.computeIfPresent(userKey, (key, userBuckets) -> {
+                userBuckets.values().removeIf(bucket -> {
+                    long arrival = bucket.theoreticalArrival.get();
+                    boolean full = arrival == Long.MIN_VALUE || arrival - now <= 0;
+                    return full && bucket.active.get() == 0 && now - bucket.lastUsed.get() > idleTimeout;
+                });
+                return userBuckets.isEmpty() ? null : userBuckets;
+            });
+        }
+    }
+
+    private Limit loadLimit(String endpoint) {
+        double rate = this.getSetting(endpoint, "rate", Double.class, 0.0);
+        int burst = this.getSetting(endpoint, "burst", Integer.class, (int) Math.ceil(rate));
+        int concurrency = this.getSetting(endpoint, "concurrency", Integer.class, 0);
+        return new Limit(rate, burst, concurrency);
+    }
+
+    private <T> T getSetting(String endpoint, String name, Class<T> type, T defaultValue) {
+        return environment.getProperty(
+                CONFIG_PREFIX + endpoint + "." + name, type,
+                environment.getProperty(CONFIG_PREFIX + name, type, defaultValue)
+        );
+    }
+
+    private static String getEndpoint(HttpServletRequest request) {
+        String path = request.getServletPath();
+        if (path == null || path.isEmpty()) {
+            path = request.getRequestURI();
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    static String getUserKey(DafoUserDetails user) {
+        if (user == null || user.getIdentity() == null) {
+            return "anonymous";
+        }
+        return user.getIdentity();
+    }
+
+    /**
+     * @return Accepted, rejected and active request counts per endpoint for a user
+     */
+    public Map<String, long[]> getUsage(DafoUserDetails user) {
+        TreeMap<String, long[]> usage = new TreeMap<>();
+        Map<String, Bucket> userBuckets = this.buckets.get(getUserKey(user));
+        if (userBuckets != null) {
+            for (Map.Entry<String, Bucket> entry : userBuckets.entrySet()) {
+                Bucket bucket = entry.getValue();
+                usage.put(entry.getKey(), new long[] {bucket.accepted.sum(), bucket.rejected.sum(), bucket.active.get()});
+            }
+        }
+        return usage;
+    }
+}
@@ -1,5 +1,8 @@
 package dk.magenta.datafordeler.adresseservice;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -10,7 +13,6 @@ import dk.magenta.datafordeler.core.exception.InvalidClientInputException;
 import dk.magenta.datafordeler.core.exception.MissingParameterException;
 import dk.magenta.datafordeler.core.fapi.Query;
 import dk.magenta.datafordeler.core.user.DafoUserDetails;
-import dk.magenta.datafordeler.core.user.DafoUserManager;
 import dk.magenta.datafordeler.core.util.LoggerHelper;
 import dk.magenta.datafordeler.gladdrreg.data.address.AddressData;
 import dk.magenta.datafordeler.gladdrreg.data.address.AddressEntity;
@@ -31,16 +33,25 @@ import dk.magenta.datafordeler.gladdrreg.data.road.RoadQuery;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.OffsetDateTime;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping("/adresse")
@@ -50,10 +61,22 @@ public class AdresseService {
     SessionManager sessionManager;
 
     @Autowired
-    private DafoUserManager dafoUserManager;
+    private ObjectMapper objectMapper;
 
     @Autowired
-    private ObjectMapper objectMapper;
+    private AddressSnapshotStore snapshotStore;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private NegativeCache negativeCache;
+
+    @Autowired
+    private ReadReplica readReplica;
+
+    @Autowired
+    private FragmentCache fragmentCache;
 
     private Logger log = LogManager.getLogger(AdresseService.class);
 
@@ -63,6 +86,8 @@ public class AdresseService {
     public static final String PARAM_HOUSE = "husnr";
     public static final String PARAM_BNR = "b_nummer";
     public static final String PARAM_ADDRESS = "adresse";
+    public static final String PARAM_ROADCODE = "vejkode";
+    public static final String PARAM_FIELDS = "felter";
 
     public static final String OUTPUT_UUID = "uuid";
     public static final String OUTPUT_NAME = "navn";
@@ -82,28 +107,310 @@ public class AdresseService {
     public static final String OUTPUT_FLOOR = "etage";
     public static final String OUTPUT_DOOR = "doer";
     public static final String OUTPUT_RESIDENCE = "bolig";
+    public static final String OUTPUT_ROADS = "veje";
+    public static final String OUTPUT_BUILDINGS = "huse";
+    public static final String OUTPUT_STATUS = "status";
+    public static final String OUTPUT_UUIDS = "uuider";
+    public static final String OUTPUT_ACCEPTED = "godkendt";
+    public static final String OUTPUT_REJECTED = "afvist";
+    public static final String OUTPUT_ACTIVE = "aktive";
+    public static final String OUTPUT_IDLE = "ledige";
+    public static final String OUTPUT_TOTAL = "i_alt";
+    public static final String OUTPUT_PENDING = "ventende";
+    public static final String OUTPUT_ACQUIRED = "hentet";
+    public static final String OUTPUT_AVERAGE_WAIT = "ventetid_ms_gennemsnit";
+    public static final String OUTPUT_MAX_WAIT = "ventetid_ms_max";
+    public static final String OUTPUT_TIMEOUTS = "timeouts";
 
 
 
-    HashMap<Integer, UUID> municipalities = new HashMap<>();
+    // Output shapes in the fragment cache
+    private static final String SHAPE_LOCALITY = "lokalitet";
+    private static final String SHAPE_ROAD = "vej";
+    private static final String SHAPE_ADDRESS = "adresse";
+    private static final String SHAPE_ADDRESSDATA = "adresseoplysninger";
+
+    public static final String MATCH_FOUND = "fundet";
+    public static final String MATCH_AMBIGUOUS = "tvetydig";
+    public static final String MATCH_NOT_FOUND = "ikke_fundet";
+
+    @Value("${dafo.adresseservice.match.maxAddresses:10000}")
+    private int matchMaxAddresses;
+
+    @Value("${dafo.adresseservice.batching.enabled:false}")
+    private boolean batchingEnabled;
+
+    @Value("${dafo.adresseservice.batching.windowMicros:500}")
+    private int batchingWindowMicros;
+
+    @Value("${dafo.adresseservice.batching.maxBatchSize:64}")
+    private int batchingMaxBatchSize;
+
+    @Value("${dafo.adresseservice.batching.threads:2}")
+    private int batchingThreads;
+
+    @Value("${dafo.adresseservice.batching.timeout:10000}")
+    private long batchingTimeoutMillis;
+
+    @Value("${dafo.adresseservice.index.revalidateInterval:60}")
+    private int indexRevalidateIntervalSeconds;
 
     /**
-     * Load known municipalities into a local map of municipalityCode: UUID
+     * Details of an address, and the uuids of the other entities they were built from
+     */
+    private static class AddressDetails {
+        final ObjectNode node;
+        final Set<UUID> dependencies;
+
+        AddressDetails(ObjectNode node, Set<UUID> dependencies) {
+            this.node = node;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private volatile MicroBatcher<UUID, AddressDetails> addressDataBatcher = null;
+
+    volatile Map<Integer, UUID> municipalities = new HashMap<>();
+
+    // Derived indexes, built on first use after each reload; set under indexLock
+    private final Object indexLock = new Object();
+
+    private volatile RoadCodeIndex roadIndex = null;
+
+    private volatile AddressMatchIndex matchIndex = null;
+
+    // Import version of the database when derived state was last loaded from it, or null if it was loaded from the snapshot
+    private volatile Long loadedDataVersion = null;
+
+    private ScheduledExecutorService indexScheduler;
+
+    private static final String QUERY_BUILDING_ROWS = AdresseService.class.getSimpleName() + ".buildingRows";
+
+    /**
+     * Registers the named queries used by the service, so Hibernate parses each of them only once
      */
     @PostConstruct
-    public void loadMunicipalities() {
+    public void registerQueries() {
+        SessionFactory sessionFactory = sessionManager.getSessionFactory();
+        BatchedLookup.registerQueries(sessionFactory, AddressEntity.class, BNumberEntity.class, RoadEntity.class, LocalityEntity.class);
+        registerReferenceQuery(sessionFactory, RoadEntity.class, "location");
+        BatchedLookup.registerQuery(
+                sessionFactory, QUERY_BUILDING_ROWS,
+                "SELECT d.road.uuid, d.houseNumber, b.uuid, count(DISTINCT e.id) FROM " + AddressEntity.class.getCanonicalName() + " e " +
+                        "JOIN e.registrations r JOIN r.effects v JOIN v.dataItems d LEFT JOIN d.bNumber b " +
+                        "WHERE d.road.uuid in (:" + BatchedLookup.PARAMETER + ") " +
+                        "AND (r.registrationFrom IS NULL OR r.registrationFrom <= :now) " +
+                        "AND (r.registrationTo IS NULL OR r.registrationTo > :now) " +
+                        "AND (v.effectFrom IS NULL OR v.effectFrom <= :now) " +
+                        "AND (v.effectTo IS NULL OR v.effectTo > :now) " +
+                        "GROUP BY d.road.uuid, d.houseNumber, b.uuid " +
+                        "ORDER BY min(e.id)"
+        );
+    }
+
+    /**
+     * Starts batching of /adresseoplysninger lookups, if enabled by configuration
+     */
+    @PostConstruct
+    public void startBatching() {
+        this.setBatchingEnabled(this.batchingEnabled);
+    }
+
+    @PreDestroy
+    public void stopBatching() {
+        this.setBatchingEnabled(false);
+    }
+
+    /**
+     * Starts checking the import version of the database, so derived state is reloaded after imports
+     * even when coherence events are disabled
+     */
+    @PostConstruct
+    public void startRevalidation() {
+        if (this.indexRevalidateIntervalSeconds <= 0) {
+            return;
+        }
+        this.indexScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "adresseservice-indexes");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.indexScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                this.revalidate();
+            } catch (RuntimeException e) {
+                log.error("Revalidating derived state failed", e);
+            }
+        }, this.indexRevalidateIntervalSeconds, this.indexRevalidateIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stopRevalidation() {
+        if (this.indexScheduler != null) {
+            this.indexScheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Reloads derived state if it was loaded from the database, and the database holds a different import version.
+     * State loaded from the snapshot is reloaded when the snapshot is rebuilt instead.
+     */
+    void revalidate() {
+        Long loadedDataVersion = this.loadedDataVersion;
+        if (loadedDataVersion == null) {
+            return;
+        }
+        long dataVersion;
         Session session = sessionManager.getSessionFactory().openSession();
         try {
-            List<MunicipalityEntity> municipalities = QueryManager.getAllEntities(session, MunicipalityEntity.class);
-            for (MunicipalityEntity municipality : municipalities) {
-                MunicipalityData data = getData(municipality);
-                if (data != null) {
-                    this.municipalities.put(data.getCode(), municipality.getUUID());
-                }
-            }
+            dataVersion = AddressSnapshotStore.getDataVersion(session);
         } finally {
             session.close();
         }
+        if (dataVersion != loadedDataVersion) {
+            log.info("Data version changed, reloading derived state");
+            this.loadMunicipalities();
+        }
+    }
+
+    /**
+     * Turns batching of concurrent /adresseoplysninger lookups on or off
+     */
+    public synchronized void setBatchingEnabled(boolean enabled) {
+        if (this.addressDataBatcher != null) {
+            this.addressDataBatcher.stop();
+            this.addressDataBatcher = null;
+        }
+        if (enabled) {
+            this.addressDataBatcher = new MicroBatcher<>(
+                    "adresseservice-batching", this.batchingWindowMicros, this.batchingMaxBatchSize, this.batchingThreads,
+                    this.batchingTimeoutMillis, this::lookupAddressData
+            );
+        }
+    }
+
+    /**
+     * Load known municipalities into a local map of municipalityCode: UUID, from the snapshot if there is one,
+     * and rebuild the negative cache. The road code and match indexes are dropped, and rebuilt on first use.
+     */
+    @PostConstruct
+    public void loadMunicipalities() {
+        AddressHierarchy hierarchy = this.snapshotStore.getHierarchy();
+        if (hierarchy != null) {
+            this.municipalities = hierarchy.getMunicipalities();
+            this.loadedDataVersion = null;
+        }
+        if (hierarchy == null || this.negativeCache.isEnabled()) {
+            Session session = sessionManager.getSessionFactory().openSession();
+            try {
+                if (hierarchy == null) {
+                    // Read before the data, so an import during the load is picked up by the next revalidation
+                    this.loadedDataVersion = AddressSnapshotStore.getDataVersion(session);
+                    this.municipalities = getMunicipalities(session);
+                }
+                if (this.negativeCache.isEnabled()) {
+                    this.negativeCache.rebuild(session);
+                }
+            } finally {
+                session.close();
+            }
+        }
+        synchronized (this.indexLock) {
+            this.roadIndex = null;
+            this.matchIndex = null;
+        }
+    }
+
+    /**
+     * @return Roads by municipality code and road code, from the snapshot if there is one, otherwise from the database
+     */
+    private RoadCodeIndex getRoadIndex() {
+        RoadCodeIndex roadIndex = this.roadIndex;
+        if (roadIndex == null) {
+            synchronized (this.indexLock) {
+                roadIndex = this.roadIndex;
+                if (roadIndex == null) {
+                    Map<Integer, UUID> municipalities = this.municipalities;
+                    AddressHierarchy hierarchy = this.snapshotStore.getHierarchy();
+                    if (hierarchy != null) {
+                        roadIndex = new RoadCodeIndex(municipalities, hierarchy.getLocalities(), hierarchy.getRoads());
+                    } else {
+                        Session session = sessionManager.getSessionFactory().openSession();
+                        try {
+                            roadIndex = new RoadCodeIndex(
+                                    municipalities,
+                                    AddressHierarchy.loadLocalities(session, municipalities.values()),
+                                    AddressHierarchy.loadRoads(session)
+                            );
+                        } finally {
+                            session.close();
+                        }
+                    }
+                    this.roadIndex = roadIndex;
+                }
+            }
+        }
+        return roadIndex;
+    }
+
+    /**
+     * @return Addresses by municipality code, road code and house number,
+     * from the snapshot if there is one, otherwise from the database
+     */
+    private AddressMatchIndex getMatchIndex() {
+        AddressMatchIndex matchIndex = this.matchIndex;
+        if (matchIndex == null) {
+            synchronized (this.indexLock) {
+                matchIndex = this.matchIndex;
+                if (matchIndex == null) {
+                    RoadCodeIndex roadIndex = this.getRoadIndex();
+                    AddressHierarchy hierarchy = this.snapshotStore.getHierarchy();
+                    if (hierarchy != null) {
+                        matchIndex = new AddressMatchIndex(roadIndex, hierarchy.getAddresses());
+                    } else {
+                        Session session = sessionManager.getSessionFactory().openSession();
+                        try {
+                            matchIndex = new AddressMatchIndex(roadIndex, AddressHierarchy.loadAddresses(session, Collections.emptyMap()));
+                        } finally {
+                            session.close();
+                        }
+                    }
+                    this.matchIndex = matchIndex;
+                }
+            }
+        }
+        return matchIndex;
+    }
+
+    /**
+     * Reload derived state when data has been imported, on this or another node.
+     * With snapshots enabled, this waits for the rebuilt snapshot instead, so the reload does not read the old one.
+     */
+    @EventListener
+    public void onDataVersionChanged(DataVersionChangedEvent event) {
+        if (!this.snapshotStore.isEnabled()) {
+            this.loadMunicipalities();
+        }
+    }
+
+    /**
+     * Reload derived state when a rebuilt snapshot has been installed
+     */
+    @EventListener
+    public void onSnapshotChanged(AddressSnapshotChangedEvent event) {
+        this.loadMunicipalities();
+    }
+
+    static HashMap<Integer, UUID> getMunicipalities(Session session) {
+        HashMap<Integer, UUID> municipalityMap = new HashMap<>();
+        List<MunicipalityEntity> municipalities = QueryManager.getAllEntities(session, MunicipalityEntity.class);
+        for (MunicipalityEntity municipality : municipalities) {
+            MunicipalityData data = getData(municipality);
+            if (data != null) {
+                municipalityMap.put(data.getCode(), municipality.getUUID());
+            }
+        }
+        return municipalityMap;
     }
 
     private static MunicipalityData getData(MunicipalityEntity municipality) {
@@ -129,122 +436,391 @@ public class AdresseService {
      */
     @RequestMapping("/lokalitet")
     public void getLocalities(HttpServletRequest request, HttpServletResponse response) throws DataFordelerException, IOException {
-        String payload = this.getLocalities(request);
+        JsonFragments payload = this.getLocalityFragments(request);
         setHeaders(response);
-        response.getWriter().write(payload);
+        payload.writeTo(response.getOutputStream());
     }
 
     public String getLocalities(HttpServletRequest request) throws DataFordelerException {
+        return this.getLocalityFragments(request).toString();
+    }
+
+    private JsonFragments getLocalityFragments(HttpServletRequest request) throws DataFordelerException {
         String municipalityCode = request.getParameter(PARAM_MUNICIPALITY);
-        DafoUserDetails user = dafoUserManager.getUserFromRequest(request);
-        log.info(
+        DafoUserDetails user = this.getUser(request);
+        log.debug(
                 "Incoming REST request for AddressService.locality with municipality {}", municipalityCode
         );
-        checkParameterExistence(PARAM_MUNICIPALITY, municipalityCode);
-        int code = parameterAsInt(PARAM_MUNICIPALITY, municipalityCode);
+        int code;
+        try (PhaseEvent parameterEvent = PhaseEvent.begin(PhaseEvent.PARAMETERS)) {
+            checkParameterExistence(PARAM_MUNICIPALITY, municipalityCode);
+            code = parameterAsInt(PARAM_MUNICIPALITY, municipalityCode);
+        }
         UUID municipality = this.municipalities.get(code);
         if (municipality == null) {
             throw new HttpNotFoundException("Municipality with code "+code+" not found");
         }
+        Set<String> fields = getFields(request);
+        if (fields == null && this.fragmentCache.isEnabled() && this.snapshotStore.getHierarchy() == null) {
+            JsonFragments results = this.lookupLocalityFragments(municipality);
+            request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, results.size());
+            return results;
+        }
+        ArrayNode results = this.lookupLocalities(municipality);
+        request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, results.size());
+        return JsonFragments.of(serialize(results, fields));
+    }
 
+    /**
+     * Finds all current localities in a municipality
+     * @param municipality UUID of the municipality
+     * @return Json array of locality nodes
+     */
+    ArrayNode lookupLocalities(UUID municipality) throws DataFordelerException {
+        AddressHierarchy hierarchy = this.snapshotStore.getHierarchy();
+        if (hierarchy != null) {
+            ArrayNode results = objectMapper.createArrayNode();
+            for (AddressHierarchy.Locality locality : hierarchy.getLocalities(municipality)) {
+                results.add(this.localityNode(locality));
+            }
+            return results;
+        }
         LocalityQuery query = new LocalityQuery();
         setQueryNow(query);
         setQueryNoLimit(query);
         query.setMunicipality(municipality.toString());
-        Session session = sessionManager.getSessionFactory().openSession();
-        try {
-            List<LocalityEntity> localities = QueryManager.getAllEntities(session, query, LocalityEntity.class);
+        return readReplica.read(session -> {
+            List<LocalityEntity> localities;
+            try (PhaseEvent queryEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+                localities = QueryManager.getAllEntities(session, query, LocalityEntity.class);
+                queryEvent.setCount(localities.size());
+            }
             ArrayNode results = objectMapper.createArrayNode();
             for (LocalityEntity locality : localities) {
-                Set<DataItem> dataItems = locality.getCurrent();
-                ObjectNode localityNode = objectMapper.createObjectNode();
-                localityNode.put(OUTPUT_UUID, locality.getUUID().toString());
-                localityNode.set(OUTPUT_NAME, null);
-                localityNode.set(OUTPUT_ABBREVIATION, null);
-                for (DataItem dataItem : dataItems) {
-                    LocalityData data = (LocalityData) dataItem;
-                    if (data.getName() != null) {
-                        localityNode.put(OUTPUT_NAME, data.getName());
-                    }
-                    if (data.getAbbrev() != null) {
-                        localityNode.put(OUTPUT_ABBREVIATION, data.getAbbrev());
-                    }
+                results.add(this.localityNode(locality));
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Finds all current localities in a municipality, taking each locality from the fragment cache if present
+     * @param municipality UUID of the municipality
+     * @return Json array of locality fragments
+     */
+    private JsonFragments lookupLocalityFragments(UUID municipality) throws DataFordelerException {
+        LocalityQuery query = new LocalityQuery();
+        setQueryNow(query);
+        setQueryNoLimit(query);
+        query.setMunicipality(municipality.toString());
+        long generation = this.fragmentCache.getGeneration();
+        return readReplica.read(session -> {
+            List<LocalityEntity> localities;
+            try (PhaseEvent queryEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+                localities = QueryManager.getAllEntities(session, query, LocalityEntity.class);
+                queryEvent.setCount(localities.size());
+            }
+            JsonFragments results = JsonFragments.array();
+            for (LocalityEntity locality : localities) {
+                byte[] fragment = this.fragmentCache.get(SHAPE_LOCALITY, locality.getUUID());
+                if (fragment == null) {
+                    fragment = encode(this.localityNode(locality));
+                    this.fragmentCache.put(SHAPE_LOCALITY, locality.getUUID(), fragment, Collections.emptySet(), generation);
                 }
-                results.add(localityNode);
+                results.add(fragment);
+            }
+            return results;
+        });
+    }
+
+    private ObjectNode localityNode(LocalityEntity locality) {
+        Set<DataItem> dataItems = locality.getCurrent();
+        ObjectNode localityNode = objectMapper.createObjectNode();
+        localityNode.put(OUTPUT_UUID, locality.getUUID().toString());
+        localityNode.set(OUTPUT_NAME, null);
+        localityNode.set(OUTPUT_ABBREVIATION, null);
+        for (DataItem dataItem : dataItems) {
+            LocalityData data = (LocalityData) dataItem;
+            if (data.getName() != null) {
+                localityNode.put(OUTPUT_NAME, data.getName());
+            }
+            if (data.getAbbrev() != null) {
+                localityNode.put(OUTPUT_ABBREVIATION, data.getAbbrev());
             }
-            return results.toString();
-        } finally {
-            session.close();
         }
+        return localityNode;
+    }
+
+    private ObjectNode localityNode(AddressHierarchy.Locality locality) {
+        ObjectNode localityNode = objectMapper.createObjectNode();
+        localityNode.put(OUTPUT_UUID, locality.uuid.toString());
+        localityNode.put(OUTPUT_NAME, locality.name);
+        localityNode.put(OUTPUT_ABBREVIATION, locality.abbreviation);
+        return localityNode;
     }
 
     /**
-     * Finds all roads in a locality. Only current data is included.
-     * @param request HTTP request containing a locality parameter
-     * @return Json-formatted string containing a list of found objects
+     * Finds all roads in a locality, or the road with a given code in a municipality.
+     * Only current data is included.
+     * @param request HTTP request containing a locality parameter,
+     *                or a municipality parameter and a road code parameter.
+     *                The locality parameter may hold several uuids, repeated or comma-separated
+     * @return Json-formatted string containing a list of found objects,
+     *         or an object with such a list per locality if several localities were given
      */
     @RequestMapping("/vej")
     public void getRoads(HttpServletRequest request, HttpServletResponse response) throws DataFordelerException, IOException {
-        String payload = this.getRoads(request);
+        JsonFragments payload = this.getRoadFragments(request);
         setHeaders(response);
-        response.getWriter().write(payload);
+        payload.writeTo(response.getOutputStream());
     }
 
     public String getRoads(HttpServletRequest request) throws DataFordelerException {
-        String localityUUID = request.getParameter(PARAM_LOCALITY);
-        DafoUserDetails user = dafoUserManager.getUserFromRequest(request);
-        log.info(
+        return this.getRoadFragments(request).toString();
+    }
+
+    private JsonFragments getRoadFragments(HttpServletRequest request) throws DataFordelerException {
+        String roadCode = request.getParameter(PARAM_ROADCODE);
+        if (roadCode != null) {
+            return JsonFragments.of(this.getRoadByCode(request, roadCode));
+        }
+        String localityUUID = joinParameter(request, PARAM_LOCALITY);
+        DafoUserDetails user = this.getUser(request);
+        log.debug(
                 "Incoming REST request for AddressService.road with locality {}", localityUUID
         );
-        checkParameterExistence(PARAM_LOCALITY, localityUUID);
-        UUID locality = parameterAsUUID(PARAM_LOCALITY, localityUUID);
+        LinkedHashSet<UUID> localities;
+        try (PhaseEvent parameterEvent = PhaseEvent.begin(PhaseEvent.PARAMETERS)) {
+            checkParameterExistence(PARAM_LOCALITY, localityUUID);
+            localities = parameterAsUUIDs(PARAM_LOCALITY, localityUUID);
+        }
+        Set<String> fields = getFields(request);
+        if (localities.size() > 1) {
+            LinkedHashMap<UUID, ArrayNode> roadsByLocality = this.lookupRoads(localities);
+            request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, countItems(roadsByLocality));
+            return JsonFragments.of(serialize(groupedNode(roadsByLocality), fields));
+        }
+        UUID locality = localities.iterator().next();
+        if (fields == null && this.fragmentCache.isEnabled() && this.snapshotStore.getHierarchy() == null) {
+            JsonFragments results = this.lookupRoadFragments(locality);
+            request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, results.size());
+            return results;
+        }
+        ArrayNode results = this.lookupRoads(locality);
+        request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, results.size());
+        return JsonFragments.of(serialize(results, fields));
+    }
+
+    /**
+     * Finds a road by municipality code and road code in the in-memory road index, without querying the database
+     */
+    private String getRoadByCode(HttpServletRequest request, String roadCode) throws DataFordelerException {
+        String municipalityCode = request.getParameter(PARAM_MUNICIPALITY);
+        DafoUserDetails user = this.getUser(request);
+        log.debug(
+                "Incoming REST request for AddressService.road with municipality {}, roadCode {}", municipalityCode, roadCode
+        );
+        int municipality, code;
+        try (PhaseEvent parameterEvent = PhaseEvent.begin(PhaseEvent.PARAMETERS)) {
+            checkParameterExistence(PARAM_MUNICIPALITY, municipalityCode);
+            checkParameterExistence(PARAM_ROADCODE, roadCode);
+            municipality = parameterAsInt(PARAM_MUNICIPALITY, municipalityCode.trim());
+            code = parameterAsInt(PARAM_ROADCODE, roadCode.trim());
+        }
+        AddressHierarchy.Road road;
+        try (PhaseEvent queryEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+            road = this.getRoadIndex().get(municipality, code);
+            queryEvent.setCount(road != null ? 1 : 0);
+        }
+        ArrayNode results = objectMapper.createArrayNode();
+        if (road != null) {
+            results.add(this.roadNode(road));
+        }
+        request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, results.size());
+        return serialize(results, getFields(request));
+    }
+
+    /**
+     * Finds all current roads in a locality
+     * @param locality UUID of the locality
+     * @return Json array of road nodes
+     */
+    ArrayNode lookupRoads(UUID locality) throws DataFordelerException {
+        AddressHierarchy hierarchy = this.snapshotStore.getHierarchy();
+        if (hierarchy != null) {
+            ArrayNode results = objectMapper.createArrayNode();
+            for (AddressHierarchy.Road road : hierarchy.getRoads(locality)) {
+                results.add(this.roadNode(road));
+            }
+            return results;
+        }
+        if (this.negativeCache.isKnownMissing(NegativeCache.Kind.LOCALITY, locality)) {
+            return objectMapper.createArrayNode();
+        }
         RoadQuery query = new RoadQuery();
         setQueryNow(query);
         setQueryNoLimit(query);
         query.setLocality(locality.toString());
-        Session session = sessionManager.getSessionFactory().openSession();
-        try {
-            List<RoadEntity> roads = QueryManager.getAllEntities(session, query, RoadEntity.class);
+        return readReplica.read(session -> {
+            List<RoadEntity> roads;
+            try (PhaseEvent queryEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+                roads = QueryManager.getAllEntities(session, query, RoadEntity.class);
+                queryEvent.setCount(roads.size());
+            }
             ArrayNode results = objectMapper.createArrayNode();
             for (RoadEntity road : roads) {
-                Set<DataItem> dataItems = road.getCurrent();
-                ObjectNode roadNode = objectMapper.createObjectNode();
-                roadNode.put(OUTPUT_UUID, road.getUUID().toString());
-                roadNode.set(OUTPUT_ROADCODE, null);
-                roadNode.set(OUTPUT_NAME, null);
-                roadNode.set(OUTPUT_ALTNAME, null);
-                roadNode.set(OUTPUT_CPRNAME, null);
-                roadNode.set(OUTPUT_SHORTNAME, null);
-                for (DataItem dataItem : dataItems) {
+                results.add(this.roadNode(road));
+            }
+            if (results.size() == 0) {
+                this.recordMiss(session, NegativeCache.Kind.LOCALITY, locality.toString());
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Finds all current roads in several localities, with one query
+     * @param localities UUIDs of the localities
+     * @return Json arrays of road nodes by locality, in the order of the localities given
+     */
+    LinkedHashMap<UUID, ArrayNode> lookupRoads(Collection<UUID> localities) throws DataFordelerException {
+        LinkedHashMap<UUID, ArrayNode> results = new LinkedHashMap<>();
+        for (UUID locality : localities) {
+            results.put(locality, objectMapper.createArrayNode());
+        }
+        AddressHierarchy hierarchy = this.snapshotStore.getHierarchy();
+        if (hierarchy != null) {
+            for (UUID locality : localities) {
+                for (AddressHierarchy.Road road : hierarchy.getRoads(locality)) {
+                    results.get(locality).add(this.roadNode(road));
+                }
+            }
+            return results;
+        }
+        HashSet<UUID> lookup = new HashSet<>();
+        for (UUID locality : localities) {
+            if (!this.negativeCache.isKnownMissing(NegativeCache.Kind.LOCALITY, locality)) {
+                lookup.add(locality);
+            }
+        }
+        if (lookup.isEmpty()) {
+            return results;
+        }
+        return readReplica.read(session -> {
+            // Start over if the lookup is retried on the primary
+            for (UUID locality : lookup) {
+                results.put(locality, objectMapper.createArrayNode());
+            }
+            List<RoadEntity> roads;
+            try (PhaseEvent queryEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+                roads = getEntitiesByReference(session, RoadEntity.class, "location", lookup);
+                queryEvent.setCount(roads.size());
+            }
+            for (RoadEntity road : roads) {
+                for (DataItem dataItem : road.getCurrent()) {
                     RoadData data = (RoadData) dataItem;
-                    if (data.getCode() != 0) {
-                        roadNode.put(OUTPUT_ROADCODE, data.getCode());
-                    }
-                    if (data.getName() != null) {
-                        roadNode.put(OUTPUT_NAME, data.getName());
-                    }
-                    if (data.getAlternateName() != null) {
-                        roadNode.put(OUTPUT_ALTNAME, data.getAlternateName());
-                    }
-                    if (data.getCprName() != null) {
-                        roadNode.put(OUTPUT_CPRNAME, data.getCprName());
-                    }
-                    if (data.getShortName() != null) {
-                        roadNode.put(OUTPUT_SHORTNAME, data.getShortName());
+                    if (data.getLocation() != null && lookup.contains(data.getLocation().getUuid())) {
+                        results.get(data.getLocation().getUuid()).add(this.roadNode(road));
+                        break;
                     }
                 }
-                results.add(roadNode);
             }
-            return results.toString();
-        } finally {
-            session.close();
+            for (UUID locality : lookup) {
+                if (results.get(locality).size() == 0) {
+                    this.recordMiss(session, NegativeCache.Kind.LOCALITY, locality.toString());
+                }
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Finds all current roads in a locality, taking each road from the fragment cache if present
+     * @param locality UUID of the locality
+     * @return Json array of road fragments
+     */
+    private JsonFragments lookupRoadFragments(UUID locality) throws DataFordelerException {
+        if (this.negativeCache.isKnownMissing(NegativeCache.Kind.LOCALITY, locality)) {
+            return JsonFragments.array();
         }
+        RoadQuery query = new RoadQuery();
+        setQueryNow(query);
+        setQueryNoLimit(query);
+        query.setLocality(locality.toString());
+        long generation = this.fragmentCache.getGeneration();
+        return readReplica.read(session -> {
+            List<RoadEntity> roads;
+            try (PhaseEvent queryEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+                roads = QueryManager.getAllEntities(session, query, RoadEntity.class);
+                queryEvent.setCount(roads.size());
+            }
+            JsonFragments results = JsonFragments.array();
+            for (RoadEntity road : roads) {
+                byte[] fragment = this.fragmentCache.get(SHAPE_ROAD, road.getUUID());
+                if (fragment == null) {
+                    fragment = encode(this.roadNode(road));
+                    this.fragmentCache.put(SHAPE_ROAD, road.getUUID(), fragment, Collections.emptySet(), generation);
+                }
+                results.add(fragment);
+            }
+            if (results.size() == 0) {
+                this.recordMiss(session, NegativeCache.Kind.LOCALITY, locality.toString());
+            }
+            return results;
+        });
+    }
+
+    private ObjectNode roadNode(RoadEntity road) {
+        Set<DataItem> dataItems = road.getCurrent();
+        ObjectNode roadNode = objectMapper.createObjectNode();
+        roadNode.put(OUTPUT_UUID, road.getUUID().toString());
+        roadNode.set(OUTPUT_ROADCODE, null);
+        roadNode.set(OUTPUT_NAME, null);
+        roadNode.set(OUTPUT_ALTNAME, null);
+        roadNode.set(OUTPUT_CPRNAME, null);
+        roadNode.set(OUTPUT_SHORTNAME, null);
+        for (DataItem dataItem : dataItems) {
+            RoadData data = (RoadData) dataItem;
+            if (data.getCode() != 0) {
+                roadNode.put(OUTPUT_ROADCODE, data.getCode());
+            }
+            if (data.getName() != null) {
+                roadNode.put(OUTPUT_NAME, data.getName());
+            }
+            if (data.getAlternateName() != null) {
+                roadNode.put(OUTPUT_ALTNAME, data.getAlternateName());
+            }
+            if (data.getCprName() != null) {
+                roadNode.put(OUTPUT_CPRNAME, data.getCprName());
+            }
+            if (data.getShortName() != null) {
+                roadNode.put(OUTPUT_SHORTNAME, data.getShortName());
+            }
+        }
+        return roadNode;
+    }
+
+    private ObjectNode roadNode(AddressHierarchy.Road road) {
+        ObjectNode roadNode = objectMapper.createObjectNode();
+        roadNode.put(OUTPUT_UUID, road.uuid.toString());
+        if (road.code != 0) {
+            roadNode.put(OUTPUT_ROADCODE, road.code);
+        } else {
+            roadNode.set(OUTPUT_ROADCODE, null);
+        }
+        roadNode.put(OUTPUT_NAME, road.name);
+        roadNode.put(OUTPUT_ALTNAME, road.alternateName);
+        roadNode.put(OUTPUT_CPRNAME, road.cprName);
+        roadNode.put(OUTPUT_SHORTNAME, road.shortName);
+        return roadNode;
     }
 
     /**
      * Finds all buildings on a road. Only current data is included.
-     * @param request HTTP request containing a road parameter
-     * @return Json-formatted string containing a list of found objects
+     * @param request HTTP request containing a road parameter,
+     *                which may hold several uuids, repeated or comma-separated
+     * @return Json-formatted string containing a list of found objects,
+     *         or an object with such a list per road if several roads were given
      */
     @RequestMapping("/hus")
     public void getBuildings(HttpServletRequest request, HttpServletResponse response) throws DataFordelerException, IOException {
@@ -254,73 +830,321 @@ public class AdresseService {
     }
 
     public String getBuildings(HttpServletRequest request) throws DataFordelerException {
-        String roadUUID = request.getParameter(PARAM_ROAD);
-        DafoUserDetails user = dafoUserManager.getUserFromRequest(request);
-        log.info(
+        String roadUUID = joinParameter(request, PARAM_ROAD);
+        DafoUserDetails user = this.getUser(request);
+        log.debug(
                 "Incoming REST request for AddressService.building with road {}", roadUUID
         );
-        checkParameterExistence(PARAM_ROAD, roadUUID);
-        UUID road = parameterAsUUID(PARAM_ROAD, roadUUID);
+        LinkedHashSet<UUID> roads;
+        try (PhaseEvent parameterEvent = PhaseEvent.begin(PhaseEvent.PARAMETERS)) {
+            checkParameterExistence(PARAM_ROAD, roadUUID);
+            roads = parameterAsUUIDs(PARAM_ROAD, roadUUID);
+        }
+        Set<String> fields = getFields(request);
+        boolean withBNumbers = isSelected(fields, OUTPUT_BNUMBER, OUTPUT_BCALLNAME);
+        if (roads.size() > 1) {
+            LinkedHashMap<UUID, ArrayNode> buildingsByRoad = this.lookupBuildings(roads, withBNumbers);
+            request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, countItems(buildingsByRoad));
+            return serialize(groupedNode(buildingsByRoad), fields);
+        }
+        ArrayNode results = this.lookupBuildings(roads.iterator().next(), withBNumbers);
+        request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, results.size());
+        return serialize(results, fields);
+    }
 
-        AddressQuery addressQuery = new AddressQuery();
-        setQueryNow(addressQuery);
-        setQueryNoLimit(addressQuery);
-        addressQuery.setRoad(road.toString());
+    /**
+     * Finds all current buildings on a road, one per house number
+     * @param road UUID of the road
+     * @return Json array of building nodes
+     */
+    ArrayNode lookupBuildings(UUID road) throws DataFordelerException {
+        return this.lookupBuildings(road, true);
+    }
 
-        Session session = sessionManager.getSessionFactory().openSession();
-        try {
-            ArrayNode results = objectMapper.createArrayNode();
+    /**
+     * Finds all current buildings on a road, one per house number
+     * @param road UUID of the road
+     * @param withBNumbers Whether to look up the B-number and its call name for each building
+     * @return Json array of building nodes
+     */
+    ArrayNode lookupBuildings(UUID road, boolean withBNumbers) throws DataFordelerException {
+        AddressHierarchy hierarchy = this.snapshotStore.getHierarchy();
+        if (hierarchy != null) {
+            return this.buildingNodes(hierarchy.getAddresses(road));
+        }
+        if (this.negativeCache.isKnownMissing(NegativeCache.Kind.ROAD, road)) {
+            return objectMapper.createArrayNode();
+        }
+        return readReplica.read(session -> {
+            List<Object[]> buildingRows;
+            try (PhaseEvent queryEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+                buildingRows = getBuildingRows(session, Collections.singleton(road));
+                queryEvent.setCount(buildingRows.size());
+            }
+            if (buildingRows.isEmpty()) {
+                this.recordMiss(session, NegativeCache.Kind.ROAD, road.toString());
+            }
+            HashMap<UUID, BNumberEntity> bNumberMap = new HashMap<>();
+            if (withBNumbers) {
+                try (PhaseEvent bNumberEvent = PhaseEvent.begin(PhaseEvent.BNUMBERS)) {
+                    bNumberMap = getBNumbersByUUID(session, buildingRows);
+                    bNumberEvent.setCount(bNumberMap.size());
+                }
+            }
+            return this.buildingNodes(buildingRows, bNumberMap);
+        });
+    }
 
-            List<AddressEntity> addressEntities = QueryManager.getAllEntities(session, addressQuery, AddressEntity.class);
-            if (!addressEntities.isEmpty()) {
-                HashMap<Identification, BNumberEntity> bNumberMap = getBNumbers(session, addressEntities);
+    /**
+     * Finds all current buildings on several roads, one per house number, with one query for the
+     * buildings and one for their B-numbers
+     * @param roads UUIDs of the roads
+     * @param withBNumbers Whether to look up the B-number and its call name for each building
+     * @return Json arrays of building nodes by road, in the order of the roads given
+     */
+    LinkedHashMap<UUID, ArrayNode> lookupBuildings(Collection<UUID> roads, boolean withBNumbers) throws DataFordelerException {
+        LinkedHashMap<UUID, ArrayNode> results = new LinkedHashMap<>();
+        AddressHierarchy hierarchy = this.snapshotStore.getHierarchy();
+        if (hierarchy != null) {
+            for (UUID road : roads) {
+                results.put(road, this.buildingNodes(hierarchy.getAddresses(road)));
+            }
+            return results;
+        }
+        HashSet<UUID> lookup = new HashSet<>();
+        for (UUID road : roads) {
+            if (!this.negativeCache.isKnownMissing(NegativeCache.Kind.ROAD, road)) {
+                lookup.add(road);
+            }
+        }
+        HashMap<UUID, List<Object[]>> buildingsByRoad = new HashMap<>();
+        HashMap<UUID, BNumberEntity> bNumberMap = new HashMap<>();
+        if (!lookup.isEmpty()) {
+            bNumberMap = readReplica.read(session -> {
+                // Start over if the lookup is retried on the primary
+                buildingsByRoad.clear();
+                List<Object[]> buildingRows;
+                try (PhaseEvent queryEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+                    buildingRows = getBuildingRows(session, lookup);
+                    queryEvent.setCount(buildingRows.size());
+                }
+                for (Object[] buildingRow : buildingRows) {
+                    buildingsByRoad.computeIfAbsent((UUID) buildingRow[0], k -> new ArrayList<>()).add(buildingRow);
+                }
+                for (UUID road : lookup) {
+                    if (!buildingsByRoad.containsKey(road)) {
+                        this.recordMiss(session, NegativeCache.Kind.ROAD, road.toString());
+                    }
+                }
+                if (!withBNumbers) {
+                    return new HashMap<>();
+                }
+                try (PhaseEvent bNumberEvent = PhaseEvent.begin(PhaseEvent.BNUMBERS)) {
+                    HashMap<UUID, BNumberEntity> bNumbers = getBNumbersByUUID(session, buildingRows);
+                    bNumberEvent.setCount(bNumbers.size());
+                    return bNumbers;
+                }
+            });
+        }
+        for (UUID road : roads) {
+            results.put(road, this.buildingNodes(buildingsByRoad.getOrDefault(road, Collections.emptyList()), bNumberMap));
+        }
+        return results;
+    }
 
-                // Dedup entiteter - kun 1 pr husnummer (p.t. er der en pr. dør/etage osv)
-                HashSet<String> seenHouseNumbers = new HashSet<>();
+    /**
+     * Finds the distinct house numbers and B-numbers of the current addresses on the given roads.
+     * Addresses are grouped in the database, so there is only one row per building rather than
+     * one entity per floor and door.
+     * @return Rows of road uuid, house number, B-number uuid and number of addresses,
+     * in the order the buildings' first addresses were stored
+     */
+    private static List<Object[]> getBuildingRows(Session session, Collection<UUID> roads) {
+        return BatchedLookup.list(session, QUERY_BUILDING_ROWS, roads, Collections.singletonMap("now", OffsetDateTime.now()));
+    }
 
-                for (AddressEntity addressEntity : addressEntities) {
-                    ObjectNode addressNode = objectMapper.createObjectNode();
-                    Set<DataItem> addressDataItems = addressEntity.getCurrent();
-                    addressNode.set(OUTPUT_HOUSENUMBER, null);
-                    addressNode.set(OUTPUT_BNUMBER, null);
-                    addressNode.set(OUTPUT_BCALLNAME, null);
-                    boolean seenBefore = false;
-                    for (DataItem dataItem : addressDataItems) {
-                        AddressData addressData = (AddressData) dataItem;
-                        if (addressData.getHouseNumber() != null) {
-                            String houseNumber = addressData.getHouseNumber();
-                            if (seenHouseNumbers.contains(houseNumber)) {
-                                seenBefore = true;
-                                break;
-                            } else {
-                                seenHouseNumbers.add(houseNumber);
-                                addressNode.put(OUTPUT_HOUSENUMBER, houseNumber);
-                            }
-                        }
-                        if (addressData.getbNumber() != null) {
-                            BNumberEntity bNumberEntity = bNumberMap.get(addressData.getbNumber());
-                            if (bNumberEntity != null) {
-                                for (DataItem bNumberDataItem : bNumberEntity.getCurrent()) {
-                                    BNumberData bNumberData = (BNumberData) bNumberDataItem;
-                                    if (bNumberData.getCode() != null) {
-                                        addressNode.put(OUTPUT_BNUMBER, bNumberData.getCode());
-                                    }
-                                    if (bNumberData.getCallname() != null && !bNumberData.getCallname().isEmpty()) {
-                                        addressNode.put(OUTPUT_BCALLNAME, bNumberData.getCallname());
-                                    }
-                                }
-                            }
-                        }
+    /**
+     * Creates building nodes from rows of road uuid, house number, B-number uuid and number of addresses,
+     * with only one node per house number. Addresses without a house number each get a node of their own.
+     */
+    private ArrayNode buildingNodes(Collection<Object[]> buildingRows, Map<UUID, BNumberEntity> bNumberMap) {
+        ArrayNode results = objectMapper.createArrayNode();
+        HashSet<String> seenHouseNumbers = new HashSet<>();
+        for (Object[] buildingRow : buildingRows) {
+            String houseNumber = (String) buildingRow[1];
+            if (houseNumber != null && !seenHouseNumbers.add(houseNumber)) {
+                continue;
+            }
+            ObjectNode addressNode = objectMapper.createObjectNode();
+            addressNode.put(OUTPUT_HOUSENUMBER, houseNumber);
+            addressNode.set(OUTPUT_BNUMBER, null);
+            addressNode.set(OUTPUT_BCALLNAME, null);
+            BNumberEntity bNumberEntity = buildingRow[2] != null ? bNumberMap.get((UUID) buildingRow[2]) : null;
+            if (bNumberEntity != null) {
+                for (DataItem bNumberDataItem : bNumberEntity.getCurrent()) {
+                    BNumberData bNumberData = (BNumberData) bNumberDataItem;
+                    if (bNumberData.getCode() != null) {
+                        addressNode.put(OUTPUT_BNUMBER, bNumberData.getCode());
+                    }
+                    if (bNumberData.getCallname() != null && !bNumberData.getCallname().isEmpty()) {
+                        addressNode.put(OUTPUT_BCALLNAME, bNumberData.getCallname());
+                    }
+                }
+            }
+            results.add(addressNode);
+            if (houseNumber == null) {
+                for (long i = 1; i < ((Number) buildingRow[3]).longValue(); i++) {
+                    results.add(addressNode.deepCopy());
+                }
+            }
+        }
+        return results;
+    }
+
+    private ArrayNode buildingNodes(Collection<AddressHierarchy.Address> addresses) {
+        ArrayNode results = objectMapper.createArrayNode();
+        HashSet<String> seenHouseNumbers = new HashSet<>();
+        for (AddressHierarchy.Address address : addresses) {
+            if (address.houseNumber != null && !seenHouseNumbers.add(address.houseNumber)) {
+                continue;
+            }
+            ObjectNode addressNode = objectMapper.createObjectNode();
+            addressNode.put(OUTPUT_HOUSENUMBER, address.houseNumber);
+            addressNode.put(OUTPUT_BNUMBER, address.bNumber);
+            addressNode.put(OUTPUT_BCALLNAME, address.bCallName);
+            results.add(addressNode);
+        }
+        return results;
+    }
+
+    /**
+     * Finds all localities in a municipality, with their roads and the buildings on each road.
+     * Only current data is included. The data is loaded with a fixed number of queries,
+     * and the locality nodes are streamed to the client one at a time.
+     * @param request HTTP request containing a municipality parameter
+     */
+    @RequestMapping("/hierarki")
+    public void getHierarchy(HttpServletRequest request, HttpServletResponse response) throws DataFordelerException, IOException {
+        String municipalityCode = request.getParameter(PARAM_MUNICIPALITY);
+        Set<String> fields = getFields(request);
+        boolean withBNumbers = isSelected(fields, OUTPUT_BNUMBER, OUTPUT_BCALLNAME);
+        DafoUserDetails user = this.getUser(request);
+        log.debug(
+                "Incoming REST request for AddressService.hierarchy with municipality {}", municipalityCode
+        );
+        int code;
+        try (PhaseEvent parameterEvent = PhaseEvent.begin(PhaseEvent.PARAMETERS)) {
+            checkParameterExistence(PARAM_MUNICIPALITY, municipalityCode);
+            code = parameterAsInt(PARAM_MUNICIPALITY, municipalityCode);
+        }
+        UUID municipality = this.municipalities.get(code);
+        if (municipality == null) {
+            throw new HttpNotFoundException("Municipality with code "+code+" not found");
+        }
+
+        AddressHierarchy hierarchy = this.snapshotStore.getHierarchy();
+        if (hierarchy != null) {
+            List<AddressHierarchy.Locality> localities = hierarchy.getLocalities(municipality);
+            request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, localities.size());
+            setHeaders(response);
+            JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream());
+            try {
+                generator.writeStartArray();
+                for (AddressHierarchy.Locality locality : localities) {
+                    ObjectNode localityNode = this.localityNode(locality);
+                    ArrayNode roadNodes = localityNode.putArray(OUTPUT_ROADS);
+                    for (AddressHierarchy.Road road : hierarchy.getRoads(locality.uuid)) {
+                        ObjectNode roadNode = this.roadNode(road);
+                        roadNode.set(OUTPUT_BUILDINGS, this.buildingNodes(hierarchy.getAddresses(road.uuid)));
+                        roadNodes.add(roadNode);
+                    }
+                    selectFields(localityNode, fields);
+                    generator.writeTree(localityNode);
+                }
+                generator.writeEndArray();
+            } finally {
+                generator.close();
+            }
+            return;
+        }
+
+        LocalityQuery query = new LocalityQuery();
+        setQueryNow(query);
+        setQueryNoLimit(query);
+        query.setMunicipality(municipality.toString());
+        readReplica.read(session -> {
+            List<LocalityEntity> localities;
+            try (PhaseEvent queryEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+                localities = QueryManager.getAllEntities(session, query, LocalityEntity.class);
+                queryEvent.setCount(localities.size());
+            }
+
+            HashSet<UUID> localityUUIDs = new HashSet<>();
+            for (LocalityEntity locality : localities) {
+                localityUUIDs.add(locality.getUUID());
+            }
+            HashMap<UUID, List<RoadEntity>> roadsByLocality = new HashMap<>();
+            HashSet<UUID> roadUUIDs = new HashSet<>();
+            List<RoadEntity> roads;
+            try (PhaseEvent roadEvent = PhaseEvent.begin(PhaseEvent.ROADS)) {
+                roads = getEntitiesByReference(session, RoadEntity.class, "location", localityUUIDs);
+                roadEvent.setCount(roads.size());
+            }
+            for (RoadEntity road : roads) {
+                for (DataItem dataItem : road.getCurrent()) {
+                    RoadData data = (RoadData) dataItem;
+                    if (data.getLocation() != null && localityUUIDs.contains(data.getLocation().getUuid())) {
+                        roadsByLocality.computeIfAbsent(data.getLocation().getUuid(), k -> new ArrayList<>()).add(road);
+                        roadUUIDs.add(road.getUUID());
+                        break;
                     }
-                    if (!seenBefore) {
-                        results.add(addressNode);
+                }
+            }
+            HashMap<UUID, List<Object[]>> buildingsByRoad = new HashMap<>();
+            List<Object[]> buildingRows;
+            try (PhaseEvent buildingEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+                buildingRows = getBuildingRows(session, roadUUIDs);
+                buildingEvent.setCount(buildingRows.size());
+            }
+            for (Object[] buildingRow : buildingRows) {
+                buildingsByRoad.computeIfAbsent((UUID) buildingRow[0], k -> new ArrayList<>()).add(buildingRow);
+            }
+            HashMap<UUID, BNumberEntity> bNumberMap = new HashMap<>();
+            if (withBNumbers) {
+                try (PhaseEvent bNumberEvent = PhaseEvent.begin(PhaseEvent.BNUMBERS)) {
+                    bNumberMap = getBNumbersByUUID(session, buildingRows);
+                    bNumberEvent.setCount(bNumberMap.size());
+                }
+            }
+
+            // Write one locality at a time while the session is open. A failure on the replica is retried on the
+            // primary only up to here; once writing has started, it is passed on as an IOException instead
+            request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, localities.size());
+            setHeaders(response);
+            JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream());
+            try {
+                generator.writeStartArray();
+                for (LocalityEntity locality : localities) {
+                    ObjectNode localityNode = this.localityNode(locality);
+                    ArrayNode roadNodes = localityNode.putArray(OUTPUT_ROADS);
+                    for (RoadEntity road : roadsByLocality.getOrDefault(locality.getUUID(), Collections.emptyList())) {
+                        ObjectNode roadNode = this.roadNode(road);
+                        roadNode.set(OUTPUT_BUILDINGS, this.buildingNodes(
+                                buildingsByRoad.getOrDefault(road.getUUID(), Collections.emptyList()), bNumberMap
+                        ));
+                        roadNodes.add(roadNode);
                     }
+                    selectFields(localityNode, fields);
+                    generator.writeTree(localityNode);
                 }
+                generator.writeEndArray();
+            } catch (RuntimeException e) {
+                throw new IOException("Could not complete the hierarchy of municipality " + code, e);
+            } finally {
+                generator.close();
             }
-            return results.toString();
-        } finally {
-            session.close();
-        }
+            return null;
+        });
     }
 
     /**
@@ -332,93 +1156,201 @@ public class AdresseService {
      */
     @RequestMapping("/adresse")
     public void getAddresses(HttpServletRequest request, HttpServletResponse response) throws DataFordelerException, IOException {
-        String payload = this.getAddresses(request);
+        JsonFragments payload = this.getAddressFragments(request);
         setHeaders(response);
-        response.getWriter().write(payload);
+        payload.writeTo(response.getOutputStream());
     }
 
     public String getAddresses(HttpServletRequest request) throws DataFordelerException {
+        return this.getAddressFragments(request).toString();
+    }
+
+    private JsonFragments getAddressFragments(HttpServletRequest request) throws DataFordelerException {
         String roadUUID = request.getParameter(PARAM_ROAD);
         String houseNumber = request.getParameter(PARAM_HOUSE);
         String buildingNumber = request.getParameter(PARAM_BNR);
-        DafoUserDetails user = dafoUserManager.getUserFromRequest(request);
-        log.info(
+        Set<String> fields = getFields(request);
+        DafoUserDetails user = this.getUser(request);
+        log.debug(
                 "Incoming REST request for AddressService.address with road {}, houseNumber {}, bNumber {}", roadUUID, houseNumber, buildingNumber
         );
-        checkParameterExistence(PARAM_ROAD, roadUUID);
-        UUID road = parameterAsUUID(PARAM_ROAD, roadUUID);
-
-        Session session = sessionManager.getSessionFactory().openSession();
-        try {
+        UUID road;
+        try (PhaseEvent parameterEvent = PhaseEvent.begin(PhaseEvent.PARAMETERS)) {
+            checkParameterExistence(PARAM_ROAD, roadUUID);
+            road = parameterAsUUID(PARAM_ROAD, roadUUID);
+        }
+        boolean hasHouseNumber = houseNumber != null && !houseNumber.trim().isEmpty();
+        boolean hasBuildingNumber = buildingNumber != null && !buildingNumber.trim().isEmpty();
+        if (
+                this.negativeCache.isKnownMissing(NegativeCache.Kind.ROAD, road) ||
+                (hasBuildingNumber && this.negativeCache.isKnownMissing(NegativeCache.Kind.BNUMBER, buildingNumber))
+        ) {
+            request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, 0);
+            return JsonFragments.array();
+        }
 
-            AddressQuery query = new AddressQuery();
-            setQueryNow(query);
-            setQueryNoLimit(query);
-            query.setRoad(road.toString());
-            if (houseNumber != null && !houseNumber.trim().isEmpty()) {
-                houseNumber = houseNumber.trim();
-                query.addHouseNumber(houseNumber);
-                query.addHouseNumber("0"+houseNumber);
-                query.addHouseNumber("00"+houseNumber);
-            }
-            if (buildingNumber != null && !buildingNumber.trim().isEmpty()) {
+        long generation = this.fragmentCache.getGeneration();
+        return readReplica.read(session -> {
+            AddressQuery query = addressQuery(road);
+            if (hasHouseNumber) {
+                for (String variant : houseNumberVariants(houseNumber)) {
+                    query.addHouseNumber(variant);
+                }
+            }
+            if (hasBuildingNumber) {
                 BNumberQuery bNumberQuery = new BNumberQuery();
                 bNumberQuery.setCode(buildingNumber.trim());
-                List<BNumberEntity> bNumberEntities = QueryManager.getAllEntities(session, bNumberQuery, BNumberEntity.class);
+                List<BNumberEntity> bNumberEntities;
+                try (PhaseEvent bNumberQueryEvent = PhaseEvent.begin(PhaseEvent.BNUMBERS)) {
+                    bNumberEntities = QueryManager.getAllEntities(session, bNumberQuery, BNumberEntity.class);
+                    bNumberQueryEvent.setCount(bNumberEntities.size());
+                }
                 if (bNumberEntities.isEmpty()) {
                     // Queried bnumber not found - return no results
-                    return "[]";
+                    this.recordMiss(session, NegativeCache.Kind.BNUMBER, buildingNumber);
+                    request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, 0);
+                    return JsonFragments.array();
                 }
                 for (BNumberEntity bNumberEntity : bNumberEntities) {
                     query.addBnr(bNumberEntity.getUUID().toString());
                 }
             }
             // We only get bnumber references here, and must look them up in the bnumber table
-            List<AddressEntity> addressEntities = QueryManager.getAllEntities(session, query, AddressEntity.class);
-            ArrayNode results = objectMapper.createArrayNode();
-            if (!addressEntities.isEmpty()) {
-                HashMap<Identification, BNumberEntity> bNumberMap = getBNumbers(session, addressEntities);
+            List<AddressEntity> addressEntities;
+            try (PhaseEvent queryEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+                addressEntities = QueryManager.getAllEntities(session, query, AddressEntity.class);
+                queryEvent.setCount(addressEntities.size());
+            }
+            if (addressEntities.isEmpty() && !hasHouseNumber && !hasBuildingNumber) {
+                this.recordMiss(session, NegativeCache.Kind.ROAD, road.toString());
+            }
+            request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, addressEntities.size());
 
+            if (fields == null && this.fragmentCache.isEnabled()) {
+                // Only build the addresses that are not cached, and only look up their bnumbers
+                HashMap<UUID, byte[]> cached = new HashMap<>();
+                ArrayList<AddressEntity> uncached = new ArrayList<>();
                 for (AddressEntity addressEntity : addressEntities) {
-                    Set<DataItem> addressDataItems = addressEntity.getCurrent();
-                    ObjectNode addressNode = objectMapper.createObjectNode();
-                    addressNode.put(OUTPUT_UUID, addressEntity.getUUID().toString());
-                    addressNode.set(OUTPUT_HOUSENUMBER, null);
-                    addressNode.set(OUTPUT_FLOOR, null);
-                    addressNode.set(OUTPUT_DOOR, null);
-                    addressNode.set(OUTPUT_BNUMBER, null);
-                    addressNode.set(OUTPUT_RESIDENCE, null);
-                    for (DataItem dataItem : addressDataItems) {
-                        AddressData addressData = (AddressData) dataItem;
-                        if (addressData.getHouseNumber() != null) {
-                            addressNode.put(OUTPUT_HOUSENUMBER, addressData.getHouseNumber());
-                        }
-                        if (addressData.getFloor() != null && !addressData.getFloor().isEmpty()) {
-                            addressNode.put(OUTPUT_FLOOR, addressData.getFloor());
-                        }
-                        if (addressData.getRoom() != null && !addressData.getRoom().isEmpty()) {
-                            addressNode.put(OUTPUT_DOOR, addressData.getRoom());
-                        }
-                        if (addressData.getbNumber() != null) {
-                            BNumberEntity bNumberEntity = bNumberMap.get(addressData.getbNumber());
-                            if (bNumberEntity != null) {
-                                for (DataItem bNumberDataItem : bNumberEntity.getCurrent()) {
-                                    BNumberData bNumberData = (BNumberData) bNumberDataItem;
-                                    if (bNumberData.getCode() != null) {
-                                        addressNode.put(OUTPUT_BNUMBER, bNumberData.getCode());
-                                    }
-                                }
-                            }
+                    byte[] fragment = this.fragmentCache.get(SHAPE_ADDRESS, addressEntity.getUUID());
+                    if (fragment != null) {
+                        cached.put(addressEntity.getUUID(), fragment);
+                    } else {
+                        uncached.add(addressEntity);
+                    }
+                }
+                HashMap<Identification, BNumberEntity> bNumberMap = new HashMap<>();
+                if (!uncached.isEmpty()) {
+                    try (PhaseEvent bNumberEvent = PhaseEvent.begin(PhaseEvent.BNUMBERS)) {
+                        bNumberMap = getBNumbers(session, uncached);
+                        bNumberEvent.setCount(bNumberMap.size());
+                    }
+                }
+                JsonFragments results = JsonFragments.array();
+                for (AddressEntity addressEntity : addressEntities) {
+                    byte[] fragment = cached.get(addressEntity.getUUID());
+                    if (fragment == null) {
+                        fragment = encode(this.addressNode(addressEntity, bNumberMap));
+                        this.fragmentCache.put(SHAPE_ADDRESS, addressEntity.getUUID(), fragment, getReferences(addressEntity), generation);
+                    }
+                    results.add(fragment);
+                }
+                return results;
+            }
+
+            return JsonFragments.of(serialize(this.addressNodes(session, addressEntities, isSelected(fields, OUTPUT_BNUMBER)), fields));
+        });
+    }
+
+    /**
+     * Finds all current addresses on a road, as /adresse does without filters
+     * @param road UUID of the road
+     * @return Json array of address nodes
+     */
+    ArrayNode lookupAddresses(UUID road) throws DataFordelerException {
+        return readReplica.read(session -> {
+            List<AddressEntity> addressEntities;
+            try (PhaseEvent queryEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+                addressEntities = QueryManager.getAllEntities(session, addressQuery(road), AddressEntity.class);
+                queryEvent.setCount(addressEntities.size());
+            }
+            return this.addressNodes(session, addressEntities, true);
+        });
+    }
+
+    private static AddressQuery addressQuery(UUID road) {
+        AddressQuery query = new AddressQuery();
+        setQueryNow(query);
+        setQueryNoLimit(query);
+        query.setRoad(road.toString());
+        return query;
+    }
+
+    private ArrayNode addressNodes(Session session, List<AddressEntity> addressEntities, boolean withBNumbers) {
+        ArrayNode results = objectMapper.createArrayNode();
+        if (!addressEntities.isEmpty()) {
+            HashMap<Identification, BNumberEntity> bNumberMap = new HashMap<>();
+            if (withBNumbers) {
+                try (PhaseEvent bNumberEvent = PhaseEvent.begin(PhaseEvent.BNUMBERS)) {
+                    bNumberMap = getBNumbers(session, addressEntities);
+                    bNumberEvent.setCount(bNumberMap.size());
+                }
+            }
+            for (AddressEntity addressEntity : addressEntities) {
+                results.add(this.addressNode(addressEntity, bNumberMap));
+            }
+        }
+        return results;
+    }
+
+    private ObjectNode addressNode(AddressEntity addressEntity, Map<Identification, BNumberEntity> bNumberMap) {
+        ObjectNode addressNode = objectMapper.createObjectNode();
+        addressNode.put(OUTPUT_UUID, addressEntity.getUUID().toString());
+        addressNode.set(OUTPUT_HOUSENUMBER, null);
+        addressNode.set(OUTPUT_FLOOR, null);
+        addressNode.set(OUTPUT_DOOR, null);
+        addressNode.set(OUTPUT_BNUMBER, null);
+        addressNode.set(OUTPUT_RESIDENCE, null);
+        for (DataItem dataItem : addressEntity.getCurrent()) {
+            AddressData addressData = (AddressData) dataItem;
+            if (addressData.getHouseNumber() != null) {
+                addressNode.put(OUTPUT_HOUSENUMBER, addressData.getHouseNumber());
+            }
+            if (addressData.getFloor() != null && !addressData.getFloor().isEmpty()) {
+                addressNode.put(OUTPUT_FLOOR, addressData.getFloor());
+            }
+            if (addressData.getRoom() != null && !addressData.getRoom().isEmpty()) {
+                addressNode.put(OUTPUT_DOOR, addressData.getRoom());
+            }
+            if (addressData.getbNumber() != null) {
+                BNumberEntity bNumberEntity = bNumberMap.get(addressData.getbNumber());
+                if (bNumberEntity != null) {
+                    for (DataItem bNumberDataItem : bNumberEntity.getCurrent()) {
+                        BNumberData bNumberData = (BNumberData) bNumberDataItem;
+                        if (bNumberData.getCode() != null) {
+                            addressNode.put(OUTPUT_BNUMBER, bNumberData.getCode());
                         }
                     }
-                    results.add(addressNode);
                 }
             }
+        }
+        return addressNode;
+    }
 
-            return results.toString();
-        } finally {
-            session.close();
+    /**
+     * @return Uuids of the roads and bnumbers referred to by the current data of an address
+     */
+    private static Set<UUID> getReferences(AddressEntity addressEntity) {
+        HashSet<UUID> references = new HashSet<>();
+        for (DataItem dataItem : addressEntity.getCurrent()) {
+            AddressData addressData = (AddressData) dataItem;
+            if (addressData.getbNumber() != null) {
+                references.add(addressData.getbNumber().getUuid());
+            }
+            if (addressData.getRoad() != null) {
+                references.add(addressData.getRoad().getUuid());
+            }
         }
+        return references;
     }
 
     /**
@@ -430,111 +1362,336 @@ public class AdresseService {
      */
     @RequestMapping("/adresseoplysninger")
     public void getAddressData(HttpServletRequest request, HttpServletResponse response) throws DataFordelerException, IOException {
-        String payload = this.getAddressData(request);
+        JsonFragments payload = this.getAddressDataFragments(request);
         setHeaders(response);
-        response.getWriter().write(payload);
+        payload.writeTo(response.getOutputStream());
     }
 
     public String getAddressData(HttpServletRequest request) throws DataFordelerException {
+        return this.getAddressDataFragments(request).toString();
+    }
+
+    private JsonFragments getAddressDataFragments(HttpServletRequest request) throws DataFordelerException {
         String addressUUID = request.getParameter(PARAM_ADDRESS);
-        DafoUserDetails user = dafoUserManager.getUserFromRequest(request);
-        log.info(
+        Set<String> fields = getFields(request);
+        DafoUserDetails user = this.getUser(request);
+        log.debug(
                 "Incoming REST request for AddressService.addressdata with address {}", addressUUID
         );
-        checkParameterExistence(PARAM_ADDRESS, addressUUID);
-        UUID address = parameterAsUUID(PARAM_ADDRESS, addressUUID);
+        UUID address;
+        try (PhaseEvent parameterEvent = PhaseEvent.begin(PhaseEvent.PARAMETERS)) {
+            checkParameterExistence(PARAM_ADDRESS, addressUUID);
+            address = parameterAsUUID(PARAM_ADDRESS, addressUUID);
+        }
+        if (this.negativeCache.isKnownMissing(NegativeCache.Kind.ADDRESS, address)) {
+            request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, 0);
+            return JsonFragments.of("{}");
+        }
+        boolean useFragments = fields == null && this.fragmentCache.isEnabled();
+        if (useFragments) {
+            byte[] fragment = this.fragmentCache.get(SHAPE_ADDRESSDATA, address);
+            if (fragment != null) {
+                request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, 1);
+                return JsonFragments.of(fragment);
+            }
+        }
+        long generation = this.fragmentCache.getGeneration();
 
-        Session session = sessionManager.getSessionFactory().openSession();
-        try {
+        // A batch resolves every field, so requests selecting fields are looked up on their own, resolving only those
+        MicroBatcher<UUID, AddressDetails> batcher = fields == null ? this.addressDataBatcher : null;
+        if (batcher != null) {
+            // Resolved together with the other addresses requested at the same time
+            AddressDetails details = batcher.get(address);
+            if (details == null) {
+                request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, 0);
+                return JsonFragments.of("{}");
+            }
+            request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, 1);
+            if (useFragments) {
+                byte[] fragment = encode(details.node);
+                this.fragmentCache.put(SHAPE_ADDRESSDATA, address, fragment, details.dependencies, generation);
+                return JsonFragments.of(fragment);
+            }
+            return JsonFragments.of(serialize(details.node, null));
+        }
+
+        return readReplica.read(session -> {
             // We only get bnumber references here, and must look them up in the bnumber table
 
             ObjectNode addressNode = objectMapper.createObjectNode();
 
-            AddressEntity addressEntity = QueryManager.getEntity(session, address, AddressEntity.class);
-            if (addressEntity != null) {
-                HashMap<Identification, BNumberEntity> bNumberMap = getBNumbers(session, Collections.singletonList(addressEntity));
-                HashMap<Identification, RoadEntity> roadMap = getRoads(session, Collections.singletonList(addressEntity));
-                HashMap<Identification, LocalityEntity> localityMap = getLocalities(session, roadMap.values());
-
-                addressNode.put(OUTPUT_UUID, addressEntity.getUUID().toString());
-                addressNode.set(OUTPUT_HOUSENUMBER, null);
-                addressNode.set(OUTPUT_FLOOR, null);
-                addressNode.set(OUTPUT_DOOR, null);
-                addressNode.set(OUTPUT_BNUMBER, null);
-                addressNode.set(OUTPUT_ROADUUID, null);
-                addressNode.set(OUTPUT_ROADCODE, null);
-                addressNode.set(OUTPUT_ROADNAME, null);
-                addressNode.set(OUTPUT_LOCALITYUUID, null);
-                addressNode.set(OUTPUT_LOCALITYNAME, null);
-                addressNode.set(OUTPUT_MUNICIPALITYCODE, null);
-                addressNode.set(OUTPUT_RESIDENCE, null);
-                for (DataItem dataItem : addressEntity.getCurrent()) {
-                    AddressData addressData = (AddressData) dataItem;
-                    if (addressData.getHouseNumber() != null) {
-                        addressNode.put(OUTPUT_HOUSENUMBER, addressData.getHouseNumber());
-                    }
-                    if (addressData.getFloor() != null && !addressData.getFloor().isEmpty()) {
-                        addressNode.put(OUTPUT_FLOOR, addressData.getFloor());
+            AddressEntity addressEntity;
+            try (PhaseEvent queryEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+                addressEntity = QueryManager.getEntity(session, address, AddressEntity.class);
+                queryEvent.setCount(addressEntity != null ? 1 : 0);
+            }
+            if (addressEntity == null) {
+                this.recordMiss(session, NegativeCache.Kind.ADDRESS, address.toString());
+            } else {
+                // Only resolve the references needed for the requested fields
+                HashMap<Identification, BNumberEntity> bNumberMap = new HashMap<>();
+                if (isSelected(fields, OUTPUT_BNUMBER)) {
+                    try (PhaseEvent bNumberEvent = PhaseEvent.begin(PhaseEvent.BNUMBERS)) {
+                        bNumberMap = getBNumbers(session, Collections.singletonList(addressEntity));
+                        bNumberEvent.setCount(bNumberMap.size());
                     }
-                    if (addressData.getRoom() != null && !addressData.getRoom().isEmpty()) {
-                        addressNode.put(OUTPUT_DOOR, addressData.getRoom());
+                }
+                HashMap<Identification, RoadEntity> roadMap = new HashMap<>();
+                if (isSelected(fields, OUTPUT_ROADUUID, OUTPUT_ROADCODE, OUTPUT_ROADNAME, OUTPUT_LOCALITYUUID, OUTPUT_LOCALITYNAME)) {
+                    try (PhaseEvent roadEvent = PhaseEvent.begin(PhaseEvent.ROADS)) {
+                        roadMap = getRoads(session, Collections.singletonList(addressEntity));
+                        roadEvent.setCount(roadMap.size());
                     }
-                    if (addressData.getResidence() != null) {
-                        addressNode.put(OUTPUT_RESIDENCE, addressData.getResidence());
+                }
+                HashMap<Identification, LocalityEntity> localityMap = new HashMap<>();
+                if (isSelected(fields, OUTPUT_LOCALITYUUID, OUTPUT_LOCALITYNAME)) {
+                    try (PhaseEvent localityEvent = PhaseEvent.begin(PhaseEvent.LOCALITIES)) {
+                        localityMap = getLocalities(session, roadMap.values());
+                        localityEvent.setCount(localityMap.size());
                     }
-                    if (addressData.getbNumber() != null) {
-                        BNumberEntity bNumberEntity = bNumberMap.get(addressData.getbNumber());
-                        if (bNumberEntity != null) {
-                            for (DataItem bNumberDataItem : bNumberEntity.getCurrent()) {
-                                BNumberData bNumberData = (BNumberData) bNumberDataItem;
-                                if (bNumberData.getCode() != null) {
-                                    addressNode.put(OUTPUT_BNUMBER, bNumberData.getCode());
-                                }
-                            }
+                }
+                addressNode = this.addressDataNode(addressEntity, bNumberMap, roadMap, localityMap);
+
+                if (useFragments) {
+                    byte[] fragment = encode(addressNode);
+                    this.fragmentCache.put(SHAPE_ADDRESSDATA, address, fragment, getDependencies(addressEntity, addressNode), generation);
+                    request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, 1);
+                    return JsonFragments.of(fragment);
+                }
+            }
+            request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, addressEntity != null ? 1 : 0);
+            return JsonFragments.of(serialize(addressNode, fields));
+        });
+    }
+
+    /**
+     * Looks up the details of several addresses with one query per table, for batched /adresseoplysninger requests.
+     * This runs on a batcher dispatcher thread, so its phase events are recorded there, and not on the threads
+     * of the requests in the batch.
+     * @param addresses UUIDs of the addresses
+     * @return Details by address uuid, for the addresses found
+     */
+    private Map<UUID, AddressDetails> lookupAddressData(Collection<UUID> addresses) {
+        return readReplica.read(session -> {
+            HashMap<UUID, AddressEntity> addressEntities;
+            try (PhaseEvent queryEvent = PhaseEvent.begin(PhaseEvent.QUERY)) {
+                addressEntities = BatchedLookup.byUUID(session, AddressEntity.class, addresses);
+                queryEvent.setCount(addressEntities.size());
+            }
+            for (UUID address : addresses) {
+                if (!addressEntities.containsKey(address)) {
+                    this.recordMiss(session, NegativeCache.Kind.ADDRESS, address.toString());
+                }
+            }
+            HashMap<Identification, BNumberEntity> bNumberMap;
+            try (PhaseEvent bNumberEvent = PhaseEvent.begin(PhaseEvent.BNUMBERS)) {
+                bNumberMap = getBNumbers(session, addressEntities.values());
+                bNumberEvent.setCount(bNumberMap.size());
+            }
+            HashMap<Identification, RoadEntity> roadMap;
+            try (PhaseEvent roadEvent = PhaseEvent.begin(PhaseEvent.ROADS)) {
+                roadMap = getRoads(session, addressEntities.values());
+                roadEvent.setCount(roadMap.size());
+            }
+            HashMap<Identification, LocalityEntity> localityMap;
+            try (PhaseEvent localityEvent = PhaseEvent.begin(PhaseEvent.LOCALITIES)) {
+                localityMap = getLocalities(session, roadMap.values());
+                localityEvent.setCount(localityMap.size());
+            }
+
+            HashMap<UUID, AddressDetails> results = new HashMap<>();
+            for (Map.Entry<UUID, AddressEntity> entry : addressEntities.entrySet()) {
+                ObjectNode addressNode = this.addressDataNode(entry.getValue(), bNumberMap, roadMap, localityMap);
+                results.put(entry.getKey(), new AddressDetails(addressNode, getDependencies(entry.getValue(), addressNode)));
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Finds the details of an address, as a batched /adresseoplysninger request does
+     * @param address UUID of the address
+     * @return Json node of the address details, or null if the address was not found
+     */
+    ObjectNode lookupAddressDetails(UUID address) {
+        AddressDetails details = this.lookupAddressData(Collections.singleton(address)).get(address);
+        return details != null ? details.node : null;
+    }
+
+    /**
+     * @return Uuids of the bnumber, road and locality that the details of an address were built from
+     */
+    private static Set<UUID> getDependencies(AddressEntity addressEntity, ObjectNode addressDataNode) {
+        Set<UUID> dependencies = getReferences(addressEntity);
+        JsonNode locality = addressDataNode.get(OUTPUT_LOCALITYUUID);
+        if (locality != null && !locality.isNull()) {
+            dependencies.add(UUID.fromString(locality.asText()));
+        }
+        return dependencies;
+    }
+
+    private ObjectNode addressDataNode(AddressEntity addressEntity, Map<Identification, BNumberEntity> bNumberMap,
+                                       Map<Identification, RoadEntity> roadMap, Map<Identification, LocalityEntity> localityMap) {
+        ObjectNode addressNode = objectMapper.createObjectNode();
+        addressNode.put(OUTPUT_UUID, addressEntity.getUUID().toString());
+        addressNode.set(OUTPUT_HOUSENUMBER, null);
+        addressNode.set(OUTPUT_FLOOR, null);
+        addressNode.set(OUTPUT_DOOR, null);
+        addressNode.set(OUTPUT_BNUMBER, null);
+        addressNode.set(OUTPUT_ROADUUID, null);
+        addressNode.set(OUTPUT_ROADCODE, null);
+        addressNode.set(OUTPUT_ROADNAME, null);
+        addressNode.set(OUTPUT_LOCALITYUUID, null);
+        addressNode.set(OUTPUT_LOCALITYNAME, null);
+        addressNode.set(OUTPUT_MUNICIPALITYCODE, null);
+        addressNode.set(OUTPUT_RESIDENCE, null);
+        for (DataItem dataItem : addressEntity.getCurrent()) {
+            AddressData addressData = (AddressData) dataItem;
+            if (addressData.getHouseNumber() != null) {
+                addressNode.put(OUTPUT_HOUSENUMBER, addressData.getHouseNumber());
+            }
+            if (addressData.getFloor() != null && !addressData.getFloor().isEmpty()) {
+                addressNode.put(OUTPUT_FLOOR, addressData.getFloor());
+            }
+            if (addressData.getRoom() != null && !addressData.getRoom().isEmpty()) {
+                addressNode.put(OUTPUT_DOOR, addressData.getRoom());
+            }
+            if (addressData.getResidence() != null) {
+                addressNode.put(OUTPUT_RESIDENCE, addressData.getResidence());
+            }
+            if (addressData.getbNumber() != null) {
+                BNumberEntity bNumberEntity = bNumberMap.get(addressData.getbNumber());
+                if (bNumberEntity != null) {
+                    for (DataItem bNumberDataItem : bNumberEntity.getCurrent()) {
+                        BNumberData bNumberData = (BNumberData) bNumberDataItem;
+                        if (bNumberData.getCode() != null) {
+                            addressNode.put(OUTPUT_BNUMBER, bNumberData.getCode());
                         }
                     }
-                    if (addressData.getRoad() != null && roadMap.keySet().contains(addressData.getRoad())) {
-                        RoadEntity roadEntity = roadMap.get(addressData.getRoad());
-                        if (roadEntity != null) {
-                            addressNode.put(OUTPUT_ROADUUID, roadEntity.getUUID().toString());
-                            for (DataItem roadDataItem : roadEntity.getCurrent()) {
-                                RoadData roadData = (RoadData) roadDataItem;
-                                if (roadData.getCode() != 0) {
-                                    addressNode.put(OUTPUT_ROADCODE, roadData.getCode());
-                                }
-                                if (roadData.getName() != null && !roadData.getName().isEmpty()) {
-                                    addressNode.put(OUTPUT_ROADNAME, roadData.getName());
-                                }
-                                if (roadData.getLocation() != null) {
-                                    LocalityEntity localityEntity = localityMap.get(roadData.getLocation());
-                                    if (localityEntity != null) {
-                                        addressNode.put(OUTPUT_LOCALITYUUID, localityEntity.getUUID().toString());
-                                        for (DataItem localityDataItem : localityEntity.getCurrent()) {
-                                            LocalityData localityData = (LocalityData) localityDataItem;
-                                            if (localityData.getName() != null && !localityData.getName().isEmpty()) {
-                                                addressNode.put(OUTPUT_LOCALITYNAME, localityData.getName());
-                                            }
-                                        }
+                }
+            }
+            if (addressData.getRoad() != null && roadMap.keySet().contains(addressData.getRoad())) {
+                RoadEntity roadEntity = roadMap.get(addressData.getRoad());
+                if (roadEntity != null) {
+                    addressNode.put(OUTPUT_ROADUUID, roadEntity.getUUID().toString());
+                    for (DataItem roadDataItem : roadEntity.getCurrent()) {
+                        RoadData roadData = (RoadData) roadDataItem;
+                        if (roadData.getCode() != 0) {
+                            addressNode.put(OUTPUT_ROADCODE, roadData.getCode());
+                        }
+                        if (roadData.getName() != null && !roadData.getName().isEmpty()) {
+                            addressNode.put(OUTPUT_ROADNAME, roadData.getName());
+                        }
+                        if (roadData.getLocation() != null) {
+                            LocalityEntity localityEntity = localityMap.get(roadData.getLocation());
+                            if (localityEntity != null) {
+                                addressNode.put(OUTPUT_LOCALITYUUID, localityEntity.getUUID().toString());
+                                for (DataItem localityDataItem : localityEntity.getCurrent()) {
+                                    LocalityData localityData = (LocalityData) localityDataItem;
+                                    if (localityData.getName() != null && !localityData.getName().isEmpty()) {
+                                        addressNode.put(OUTPUT_LOCALITYNAME, localityData.getName());
                                     }
                                 }
                             }
                         }
                     }
+                }
+            }
 
-                    // No need to look up in the municipality table, because we already loaded all municipalities
-                    if (addressData.getMunicipality() != null) {
-                        for (Map.Entry<Integer, UUID> municipalityEntry : this.municipalities.entrySet()) {
-                            if (municipalityEntry.getValue() != null && municipalityEntry.getValue().equals(addressData.getMunicipality().getUuid())) {
-                                addressNode.put(OUTPUT_MUNICIPALITYCODE, municipalityEntry.getKey());
-                                break;
-                            }
-                        }
+            // No need to look up in the municipality table, because we already loaded all municipalities
+            if (addressData.getMunicipality() != null) {
+                for (Map.Entry<Integer, UUID> municipalityEntry : this.municipalities.entrySet()) {
+                    if (municipalityEntry.getValue() != null && municipalityEntry.getValue().equals(addressData.getMunicipality().getUuid())) {
+                        addressNode.put(OUTPUT_MUNICIPALITYCODE, municipalityEntry.getKey());
+                        break;
                     }
                 }
             }
-            return addressNode.toString();
-        } finally {
-            session.close();
+        }
+        return addressNode;
+    }
+
+    /**
+     * Matches a list of addresses, given as objects with kommunekode, vejkode, husnr, etage and doer,
+     * against the current addresses, using the in-memory match index. Only current data is included.
+     * The index is dropped whenever derived state is reloaded after an import, and rebuilt by the next match.
+     * An address without etage or doer matches every address in the house that fits the parts given.
+     * @param request HTTP POST request with a json list of addresses as body
+     * @return Json-formatted string containing a list of match results, in the same order as the input
+     */
+    @RequestMapping(value = "/match", method = RequestMethod.POST)
+    public void matchAddresses(HttpServletRequest request, HttpServletResponse response) throws DataFordelerException, IOException {
+        String payload = this.matchAddresses(request);
+        setHeaders(response);
+        response.getWriter().write(payload);
+    }
+
+    public String matchAddresses(HttpServletRequest request) throws DataFordelerException, IOException {
+        DafoUserDetails user = this.getUser(request);
+        JsonNode input;
+        try {
+            input = objectMapper.readTree(request.getInputStream());
+        } catch (JsonProcessingException e) {
+            throw new InvalidClientInputException("Request body must be a json list of addresses", e);
+        }
+        if (input == null || !input.isArray()) {
+            throw new InvalidClientInputException("Request body must be a json list of addresses");
+        }
+        if (input.size() > this.matchMaxAddresses) {
+            throw new InvalidClientInputException("At most "+this.matchMaxAddresses+" addresses can be matched in one request");
+        }
+        log.debug(
+                "Incoming REST request for AddressService.match with {} addresses", input.size()
+        );
+
+        AddressMatchIndex matchIndex = this.getMatchIndex();
+        ArrayNode results = objectMapper.createArrayNode();
+        for (JsonNode item : input) {
+            AddressKey key = new AddressKey(
+                    item.path(OUTPUT_MUNICIPALITYCODE).asInt(0),
+                    item.path(OUTPUT_ROADCODE).asInt(0),
+                    item.path(PARAM_HOUSE).asText(null),
+                    item.path(OUTPUT_FLOOR).asText(null),
+                    item.path(OUTPUT_DOOR).asText(null)
+            );
+            Collection<UUID> found = Collections.emptyList();
+            if (key.houseNumber != null) {
+                found = matchIndex.find(key.municipalityCode, key.roadCode, houseNumberVariants(key.houseNumber), key.floor, key.door);
+            }
+            ObjectNode resultNode = results.addObject();
+            if (found.isEmpty()) {
+                resultNode.put(OUTPUT_STATUS, MATCH_NOT_FOUND);
+            } else if (found.size() == 1) {
+                resultNode.put(OUTPUT_STATUS, MATCH_FOUND);
+                resultNode.put(OUTPUT_UUID, found.iterator().next().toString());
+            } else {
+                resultNode.put(OUTPUT_STATUS, MATCH_AMBIGUOUS);
+                ArrayNode uuidNodes = resultNode.putArray(OUTPUT_UUIDS);
+                for (UUID uuid : found) {
+                    uuidNodes.add(uuid.toString());
+                }
+            }
+        }
+        request.setAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS, results.size());
+        return serialize(results, getFields(request));
+    }
+
+    /**
+     * Composite key of an address, as used by CPR: municipality code, road code, house number, floor and door
+     */
+    private static final class AddressKey {
+        final int municipalityCode;
+        final int roadCode;
+        final String houseNumber;
+        final String floor;
+        final String door;
+
+        AddressKey(int municipalityCode, int roadCode, String houseNumber, String floor, String door) {
+            this.municipalityCode = municipalityCode;
+            this.roadCode = roadCode;
+            this.houseNumber = AddressMatchIndex.normalize(houseNumber);
+            this.floor = AddressMatchIndex.normalize(floor);
+            this.door = AddressMatchIndex.normalize(door);
         }
     }
 
@@ -552,22 +1709,21 @@ public class AdresseService {
         return getBNumbers(session, bNumbers);
     }
 
-    private static HashMap<Identification, BNumberEntity> getBNumbers(Session session, HashSet<Identification> identifications) {
-        HashMap<Identification, BNumberEntity> bNumberMap = new HashMap<>();
-        if (!identifications.isEmpty()) {
-            org.hibernate.query.Query<Object[]> bQuery = session.createQuery(
-                    "SELECT DISTINCT e, e.identification FROM " + BNumberEntity.class.getCanonicalName() + " e " +
-                            "WHERE e.identification in (:identifications)"
-            );
-            bQuery.setParameterList("identifications", identifications);
-
-            for (Object[] resultItem : bQuery.getResultList()) {
-                BNumberEntity bNumberEntity = (BNumberEntity) resultItem[0];
-                Identification identification = (Identification) resultItem[1];
-                bNumberMap.put(identification, bNumberEntity);
+    /**
+     * Looks up the B-numbers referenced by building rows, as made by getBuildingRows
+     */
+    private static HashMap<UUID, BNumberEntity> getBNumbersByUUID(Session session, Collection<Object[]> buildingRows) {
+        HashSet<UUID> uuids = new HashSet<>();
+        for (Object[] buildingRow : buildingRows) {
+            if (buildingRow[2] != null) {
+                uuids.add((UUID) buildingRow[2]);
             }
         }
-        return bNumberMap;
+        return BatchedLookup.byUUID(session, BNumberEntity.class, uuids);
+    }
+
+    private static HashMap<Identification, BNumberEntity> getBNumbers(Session session, HashSet<Identification> identifications) {
+        return BatchedLookup.byIdentification(session, BNumberEntity.class, identifications);
     }
 
 
@@ -587,21 +1743,7 @@ public class AdresseService {
     }
 
     private static HashMap<Identification, RoadEntity> getRoads(Session session, HashSet<Identification> identifications) {
-        HashMap<Identification, RoadEntity> roadMap = new HashMap<>();
-        if (!identifications.isEmpty()) {
-            org.hibernate.query.Query<Object[]> bQuery = session.createQuery(
-                    "SELECT DISTINCT e, e.identification FROM " + RoadEntity.class.getCanonicalName() + " e " +
-                            "WHERE e.identification in (:identifications)"
-            );
-            bQuery.setParameterList("identifications", identifications);
-
-            for (Object[] resultItem : bQuery.getResultList()) {
-                RoadEntity roadEntity = (RoadEntity) resultItem[0];
-                Identification identification = (Identification) resultItem[1];
-                roadMap.put(identification, roadEntity);
-            }
-        }
-        return roadMap;
+        return BatchedLookup.byIdentification(session, RoadEntity.class, identifications);
     }
 
     private static HashMap<Identification, LocalityEntity> getLocalities(Session session, Collection<RoadEntity> roadEntities) {
@@ -619,24 +1761,206 @@ public class AdresseService {
     }
 
     private static HashMap<Identification, LocalityEntity> getLocalities(Session session, HashSet<Identification> identifications) {
-        HashMap<Identification, LocalityEntity> localityMap = new HashMap<>();
-        if (!identifications.isEmpty()) {
-            org.hibernate.query.Query<Object[]> bQuery = session.createQuery(
-                    "SELECT DISTINCT e, e.identification FROM " + LocalityEntity.class.getCanonicalName() + " e " +
-                            "WHERE e.identification in (:identifications)"
-            );
-            bQuery.setParameterList("identifications", identifications);
+        return BatchedLookup.byIdentification(session, LocalityEntity.class, identifications);
+    }
+
+
+
+    /**
+     * Shows how many requests the calling user has had accepted and rejected by admission control, per endpoint
+     */
+    @RequestMapping("/forbrug")
+    public void getUsage(HttpServletRequest request, HttpServletResponse response) throws DataFordelerException, IOException {
+        DafoUserDetails user = this.getUser(request);
+        ObjectNode usageNode = objectMapper.createObjectNode();
+        for (Map.Entry<String, long[]> entry : admissionControl.getUsage(user).entrySet()) {
+            ObjectNode endpointNode = usageNode.putObject(entry.getKey());
+            endpointNode.put(OUTPUT_ACCEPTED, entry.getValue()[0]);
+            endpointNode.put(OUTPUT_REJECTED, entry.getValue()[1]);
+            endpointNode.put(OUTPUT_ACTIVE, entry.getValue()[2]);
+        }
+        setHeaders(response);
+        response.getWriter().write(usageNode.toString());
+    }
+
+    /**
+     * Shows the state of the database connection pools, and how long requests have waited for a connection
+     */
+    @RequestMapping("/forbindelser")
+    public void getConnectionPools(HttpServletRequest request, HttpServletResponse response) throws DataFordelerException, IOException {
+        DafoUserDetails user = this.getUser(request);
+        ObjectNode poolsNode = objectMapper.createObjectNode();
+        for (Map.Entry<String, ConnectionPools.Metrics> entry : ConnectionPools.getMetrics().entrySet()) {
+            ConnectionPools.Metrics metrics = entry.getValue();
+            ObjectNode poolNode = poolsNode.putObject(entry.getKey());
+            poolNode.put(OUTPUT_ACTIVE, metrics.getActiveConnections());
+            poolNode.put(OUTPUT_IDLE, metrics.getIdleConnections());
+            poolNode.put(OUTPUT_TOTAL, metrics.getTotalConnections());
+            poolNode.put(OUTPUT_PENDING, metrics.getPendingThreads());
+            poolNode.put(OUTPUT_ACQUIRED, metrics.getAcquired());
+            poolNode.put(OUTPUT_AVERAGE_WAIT, metrics.getAverageWaitMillis());
+            poolNode.put(OUTPUT_MAX_WAIT, metrics.getMaxWaitMillis());
+            poolNode.put(OUTPUT_TIMEOUTS, metrics.getTimeouts());
+        }
+        setHeaders(response);
+        response.getWriter().write(poolsNode.toString());
+    }
+
+    /**
+     * Records that a lookup found nothing. Lookups on the replica are left out, as it may just not have the data yet.
+     */
+    private void recordMiss(Session session, NegativeCache.Kind kind, String key) {
+        if (!this.readReplica.isReplica(session)) {
+            this.negativeCache.recordMiss(kind, key);
+        }
+    }
+
+    /**
+     * Gets the user of the request, as already resolved by admission control if possible
+     */
+    private DafoUserDetails getUser(HttpServletRequest request) throws DataFordelerException {
+        return this.admissionControl.getUser(request);
+    }
+
+    /**
+     * Writes a json node to a string, recorded as the serialization phase of the request
+     * @param fields Output fields to include, or null for all
+     */
+    private static String serialize(JsonNode node, Set<String> fields) {
+        String payload;
+        try (PhaseEvent serializationEvent = PhaseEvent.begin(PhaseEvent.SERIALIZATION)) {
+            selectFields(node, fields);
+            payload = node.toString();
+            serializationEvent.setCount(node.size());
+        }
+        return payload;
+    }
+
+    /**
+     * Encodes a json node as a UTF-8 fragment for the fragment cache, recorded as the serialization phase of the request
+     */
+    private static byte[] encode(JsonNode node) {
+        byte[] fragment;
+        try (PhaseEvent serializationEvent = PhaseEvent.begin(PhaseEvent.SERIALIZATION)) {
+            fragment = node.toString().getBytes(StandardCharsets.UTF_8);
+            serializationEvent.setCount(node.size());
+        }
+        return fragment;
+    }
+
+    /**
+     * Reads the output fields requested with the felter parameter, given as repeated or comma-separated names
+     * @return Requested field names, or null if all fields should be included
+     */
+    private static Set<String> getFields(HttpServletRequest request) {
+        String[] values = request.getParameterValues(PARAM_FIELDS);
+        if (values == null) {
+            return null;
+        }
+        HashSet<String> fields = new HashSet<>();
+        for (String value : values) {
+            for (String field : value.split(",")) {
+                if (!field.trim().isEmpty()) {
+                    fields.add(field.trim());
+                }
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @return true if any of the given output fields should be included
+     */
+    private static boolean isSelected(Set<String> fields, String... names) {
+        if (fields == null) {
+            return true;
+        }
+        for (String name : names) {
+            if (fields.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Nested lists in the output, with the fields of their objects and of the lists nested further down
+    private static final Map<String, Set<String>> NESTED_FIELDS = new HashMap<>();
+    static {
+        Set<String> buildingFields = new HashSet<>(Arrays.asList(OUTPUT_HOUSENUMBER, OUTPUT_BNUMBER, OUTPUT_BCALLNAME));
+        Set<String> roadFields = new HashSet<>(Arrays.asList(
+                OUTPUT_UUID, OUTPUT_ROADCODE, OUTPUT_NAME, OUTPUT_SHORTNAME, OUTPUT_ALTNAME, OUTPUT_CPRNAME, OUTPUT_BUILDINGS
+        ));
+        roadFields.addAll(buildingFields);
+        NESTED_FIELDS.put(OUTPUT_BUILDINGS, buildingFields);
+        NESTED_FIELDS.put(OUTPUT_ROADS, roadFields);
+    }
 
-            for (Object[] resultItem : bQuery.getResultList()) {
-                LocalityEntity localityEntity = (LocalityEntity) resultItem[0];
-                Identification identification = (Identification) resultItem[1];
-                localityMap.put(identification, localityEntity);
+    /**
+     * Removes the fields not requested from the objects in a json tree. A nested list, such as the roads of a
+     * locality in /hierarki, is kept if it is requested itself, or if any field of its objects is requested,
+     * and its objects are then filtered in turn. The lists of a grouped response are always kept.
+     * @param fields Output fields to include, or null for all
+     */
+    private static void selectFields(JsonNode node, Set<String> fields) {
+        if (fields == null) {
+            return;
+        }
+        if (node.isArray()) {
+            for (JsonNode item : node) {
+                selectFields(item, fields);
+            }
+        } else if (node.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> iterator = node.fields();
+            while (iterator.hasNext()) {
+                Map.Entry<String, JsonNode> field = iterator.next();
+                Set<String> nestedFields = NESTED_FIELDS.get(field.getKey());
+                boolean nestedSelected = nestedFields != null && !Collections.disjoint(nestedFields, fields);
+                if (!field.getValue().isArray()) {
+                    if (!fields.contains(field.getKey())) {
+                        iterator.remove();
+                    }
+                } else if (nestedFields == null || nestedSelected) {
+                    // A list of a grouped response, or a nested list with requested fields
+                    selectFields(field.getValue(), fields);
+                } else if (!fields.contains(field.getKey())) {
+                    iterator.remove();
+                }
             }
         }
-        return localityMap;
     }
 
+    /**
+     * Finds, in one query, all entities that have data referring to one of the given uuids in the given field.
+     * Callers should check the reference against the current data, since this does not filter on time.
+     * The query must have been registered in registerQueries.
+     */
+    private static <E extends Entity> List<E> getEntitiesByReference(Session session, Class<E> entityClass, String field, Collection<UUID> uuids) {
+        return new ArrayList<>(new LinkedHashSet<>(BatchedLookup.<E>list(session, referenceQueryName(entityClass, field), uuids)));
+    }
+
+    private static String referenceQueryName(Class<? extends Entity> entityClass, String field) {
+        return AdresseService.class.getSimpleName() + "." + entityClass.getSimpleName() + ".by." + field;
+    }
+
+    /**
+     * Registers a named query finding the entities that have data referring to one of a list of uuids in the given field
+     */
+    private static void registerReferenceQuery(SessionFactory sessionFactory, Class<? extends Entity> entityClass, String field) {
+        BatchedLookup.registerQuery(
+                sessionFactory, referenceQueryName(entityClass, field),
+                "SELECT DISTINCT e FROM " + entityClass.getCanonicalName() + " e " +
+                        "JOIN e.registrations r JOIN r.effects v JOIN v.dataItems d " +
+                        "WHERE d." + field + ".uuid in (:" + BatchedLookup.PARAMETER + ")"
+        );
+    }
 
+    /**
+     * House numbers are stored with varying zero-padding, so "5" may be stored as "05" or "005"
+     */
+    private static List<String> houseNumberVariants(String houseNumber) {
+        houseNumber = houseNumber.trim();
+        return Arrays.asList(houseNumber, "0"+houseNumber, "00"+houseNumber);
+    }
 
     private static void checkParameterExistence(String name, String value) throws MissingParameterException {
         if (value == null || value.trim().isEmpty()) {
@@ -660,6 +1984,46 @@ public class AdresseService {
         }
     }
 
+    /**
+     * @return All values of a parameter that may be repeated, joined with commas, or null if it is not given
+     */
+    private static String joinParameter(HttpServletRequest request, String name) {
+        String[] values = request.getParameterValues(name);
+        return values != null ? String.join(",", values) : null;
+    }
+
+    private static LinkedHashSet<UUID> parameterAsUUIDs(String name, String value) throws InvalidClientInputException {
+        LinkedHashSet<UUID> uuids = new LinkedHashSet<>();
+        for (String part : value.split(",")) {
+            if (!part.trim().isEmpty()) {
+                uuids.add(parameterAsUUID(name, part.trim()));
+            }
+        }
+        if (uuids.isEmpty()) {
+            throw new InvalidClientInputException("Parameter "+name+" must be a uuid");
+        }
+        return uuids;
+    }
+
+    /**
+     * @return Json object with a list of results for each parent uuid
+     */
+    private ObjectNode groupedNode(Map<UUID, ArrayNode> resultsByParent) {
+        ObjectNode node = objectMapper.createObjectNode();
+        for (Map.Entry<UUID, ArrayNode> entry : resultsByParent.entrySet()) {
+            node.set(entry.getKey().toString(), entry.getValue());
+        }
+        return node;
+    }
+
+    private static int countItems(Map<UUID, ArrayNode> resultsByParent) {
+        int count = 0;
+        for (ArrayNode results : resultsByParent.values()) {
+            count += results.size();
+        }
+        return count;
+    }
+
     private static void setQueryNow(Query query) {
         OffsetDateTime now = OffsetDateTime.now();
         query.setRegistrationFrom(now);
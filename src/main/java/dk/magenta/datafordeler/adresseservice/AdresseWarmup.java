@@ -0,0 +1,179 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs representative lookups for every municipality, locality, road and address after startup,
+ * so Hibernate, the JIT and the database caches are warm before traffic arrives.
+ * The readiness endpoint reports not-ready until the warmup has finished or run out of time.
+ */
+@RestController
+@RequestMapping("/adresse")
+public class AdresseWarmup {
+
+    @Autowired
+    private AdresseService adresseService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private AddressSnapshotStore snapshotStore;
+
+    @Value("${dafo.adresseservice.warmup.enabled:false}")
+    private boolean enabled;
+
+    @Value("${dafo.adresseservice.warmup.threads:4}")
+    private int threads;
+
+    @Value("${dafo.adresseservice.warmup.timeBudget:60}")
+    private int timeBudgetSeconds;
+
+    private Logger log = LogManager.getLogger(AdresseWarmup.class);
+
+    private volatile boolean ready = false;
+
+    @PostConstruct
+    public void start() {
+        if (!this.enabled) {
+            this.ready = true;
+            return;
+        }
+        if (this.snapshotStore.isEnabled()) {
+            // Lookups are served from the in-memory snapshot, so there is nothing to warm
+            log.info("Skipping warmup, lookups are served from the address snapshot");
+            this.ready = true;
+            return;
+        }
+        this.startWarmup(r -> {
+            Thread thread = new Thread(r, "adresseservice-warmup");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    /**
+     * Marks the node as not ready, and runs the warmup on the given executor
+     */
+    public void startWarmup(Executor executor) {
+        this.ready = false;
+        executor.execute(this::warmup);
+    }
+
+    public boolean isReady() {
+        return this.ready;
+    }
+
+    /**
+     * Readiness probe for the load balancer. Responds 503 until warmup is complete.
+     */
+    @RequestMapping("/klar")
+    public void getReadiness(HttpServletResponse response) throws IOException {
+        ObjectNode node = objectMapper.createObjectNode();
+        node.put("klar", this.ready);
+        response.setStatus(this.ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Content-Type", "application/json; charset=utf-8");
+        response.getWriter().write(node.toString());
+    }
+
+    void warmup() {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(this.timeBudgetSeconds);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, this.threads));
+        try {
+            List<UUID> localities = this.runAll(
+                    executor, new ArrayList<>(this.adresseService.municipalities.values()), this.adresseService::lookupLocalities, deadline
+            );
+            List<UUID> roads = this.runAll(executor, localities, this.adresseService::lookupRoads, deadline);
+            this.runAll(executor, roads, this.adresseService::lookupBuildings, deadline);
+            List<UUID> addresses = this.runAll(executor, roads, this.adresseService::lookupAddresses, deadline);
+            this.runAll(executor, addresses, this::lookupAddressDetails, deadline);
+            log.info(
+                    "Warmup finished in {} ms: {} localities, {} roads, {} addresses",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), localities.size(), roads.size(), addresses.size()
+            );
+        } catch (InterruptedException e) {
+            log.warn("Warmup interrupted", e);
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.error("Warmup failed", e);
+        } finally {
+            executor.shutdownNow();
+            this.ready = true;
+        }
+    }
+
+    private ArrayNode lookupAddressDetails(UUID address) {
+        ArrayNode results = objectMapper.createArrayNode();
+        ObjectNode details = this.adresseService.lookupAddressDetails(address);
+        if (details != null) {
+            results.add(details);
+        }
+        return results;
+    }
+
+    private interface Lookup {
+        ArrayNode lookup(UUID parent) throws Exception;
+    }
+
+    /**
+     * Runs a lookup for each parent in parallel, within what is left of the time budget
+     * @return UUIDs of all objects found by the lookups that completed in time
+     */
+    private List<UUID> runAll(ExecutorService executor, Collection<UUID> parents, Lookup lookup, long deadline) throws InterruptedException {
+        ArrayList<UUID> found = new ArrayList<>();
+        long remaining = deadline - System.nanoTime();
+        if (parents.isEmpty() || remaining <= 0) {
+            return found;
+        }
+        ArrayList<Callable<ArrayNode>> tasks = new ArrayList<>();
+        for (UUID parent : parents) {
+            tasks.add(() -> {
+                ArrayNode results = lookup.lookup(parent);
+                // Serialize as the endpoints do, so the writers are warm too
+                objectMapper.writeValueAsBytes(results);
+                return results;
+            });
+        }
+        for (Future<ArrayNode> future : executor.invokeAll(tasks, remaining, TimeUnit.NANOSECONDS)) {
+            try {
+                for (JsonNode node : future.get()) {
+                    JsonNode uuid = node.get(AdresseService.OUTPUT_UUID);
+                    if (uuid != null && !uuid.isNull()) {
+                        found.add(UUID.fromString(uuid.asText()));
+                    }
+                }
+            } catch (CancellationException e) {
+                // Out of time; the remaining lookups are skipped
+            } catch (ExecutionException e) {
+                log.warn("Warmup lookup failed", e.getCause());
+            }
+        }
+        return found;
+    }
+}
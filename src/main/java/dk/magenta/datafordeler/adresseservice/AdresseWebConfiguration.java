@@ -0,0 +1,32 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class AdresseWebConfiguration implements WebMvcConfigurer {
+
+    @Autowired
+    private FlightRecording flightRecording;
+
+    @Autowired
+    private AccessLog accessLog;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(flightRecording)
+                .addPathPatterns("/adresse/**");
+        // Access logging goes before admission control, so requests rejected by admission control are logged too
+        registry.addInterceptor(accessLog)
+                .addPathPatterns("/adresse/**")
+                .excludePathPatterns("/adresse/klar");
+        registry.addInterceptor(admissionControl)
+                .addPathPatterns("/adresse/**")
+                .excludePathPatterns("/adresse/klar");
+    }
+}
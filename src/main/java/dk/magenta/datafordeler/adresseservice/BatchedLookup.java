@@ -0,0 +1,140 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import dk.magenta.datafordeler.core.database.Identification;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Looks up entities by a set of identifications or uuids, in a way that keeps the number of distinct
+ * SQL statements small: the queries are registered once at startup as named queries, IN-lists are padded up to
+ * a fixed set of sizes, and large sets are split into chunks of the largest size.
+ * That keeps Hibernate's query plan cache and the database statement cache from filling up with
+ * one statement per list length, and keeps each statement below driver parameter limits.
+ */
+public final class BatchedLookup {
+
+    static final int[] BUCKET_SIZES = {1, 4, 16, 64, 256};
+    static final int CHUNK_SIZE = BUCKET_SIZES[BUCKET_SIZES.length - 1];
+
+    public static final String PARAMETER = "keys";
+
+    private BatchedLookup() {
+    }
+
+    /**
+     * Registers the lookup queries for the given entity classes, by identification and by uuid.
+     * Must be called once at startup, before any lookup of those classes.
+     */
+    public static void registerQueries(SessionFactory sessionFactory, Class... entityClasses) {
+        for (Class entityClass : entityClasses) {
+            registerLookup(sessionFactory, entityClass, "identification", "e.identification");
+            registerLookup(sessionFactory, entityClass, "uuid", "e.identification.uuid");
+        }
+    }
+
+    private static void registerLookup(SessionFactory sessionFactory, Class entityClass, String keyName, String keyPath) {
+        registerQuery(
+                sessionFactory, queryName(entityClass, keyName),
+                "SELECT DISTINCT e, " + keyPath + " FROM " + entityClass.getCanonicalName() + " e " +
+                        "WHERE " + keyPath + " in (:" + PARAMETER + ")"
+        );
+    }
+
+    /**
+     * Parses the HQL once, and registers it as a named query on the session factory
+     */
+    public static void registerQuery(SessionFactory sessionFactory, String queryName, String hql) {
+        Session session = sessionFactory.openSession();
+        try {
+            sessionFactory.addNamedQuery(queryName, session.createQuery(hql));
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * @return Entities of the given class with the given identifications, keyed by identification
+     */
+    public static <E> HashMap<Identification, E> byIdentification(Session session, Class<E> entityClass, Collection<Identification> identifications) {
+        return lookup(session, queryName(entityClass, "identification"), identifications);
+    }
+
+    /**
+     * @return Entities of the given class with the given uuids, keyed by uuid
+     */
+    public static <E> HashMap<UUID, E> byUUID(Session session, Class<E> entityClass, Collection<UUID> uuids) {
+        return lookup(session, queryName(entityClass, "uuid"), uuids);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E, K> HashMap<K, E> lookup(Session session, String queryName, Collection<K> keys) {
+        HashMap<K, E> results = new HashMap<>();
+        for (Object[] resultItem : BatchedLookup.<Object[]>list(session, queryName, keys)) {
+            results.put((K) resultItem[1], (E) resultItem[0]);
+        }
+        return results;
+    }
+
+    /**
+     * Runs a registered named query once per chunk of the keys, with the chunk bound to the PARAMETER list,
+     * and collects the results
+     * @param parameters Other parameters of the query, by name
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> List<T> list(Session session, String queryName, Collection<?> keys, Map<String, Object> parameters) {
+        ArrayList<T> results = new ArrayList<>();
+        for (List<?> chunk : chunk(keys)) {
+            org.hibernate.query.Query<T> query = session.getNamedQuery(queryName);
+            query.setParameterList(PARAMETER, chunk);
+            for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+                query.setParameter(parameter.getKey(), parameter.getValue());
+            }
+            results.addAll(query.getResultList());
+        }
+        return results;
+    }
+
+    public static <T> List<T> list(Session session, String queryName, Collection<?> keys) {
+        return list(session, queryName, keys, Collections.emptyMap());
+    }
+
+    private static String queryName(Class entityClass, String keyName) {
+        return BatchedLookup.class.getSimpleName() + "." + entityClass.getSimpleName() + "." + keyName;
+    }
+
+    /**
+     * Splits the keys into chunks of at most CHUNK_SIZE, each padded up to the nearest bucket size
+     * by repeating its last key. Repeated keys do not change the result of an IN-query.
+     */
+    public static <K> List<List<K>> chunk(Collection<K> keys) {
+        ArrayList<K> all = new ArrayList<>(keys);
+        ArrayList<List<K>> chunks = new ArrayList<>();
+        for (int start = 0; start < all.size(); start += CHUNK_SIZE) {
+            ArrayList<K> chunk = new ArrayList<>(all.subList(start, Math.min(start + CHUNK_SIZE, all.size())));
+            int size = bucketSize(chunk.size());
+            K last = chunk.get(chunk.size() - 1);
+            while (chunk.size() < size) {
+                chunk.add(last);
+            }
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    public static int bucketSize(int size) {
+        for (int bucketSize : BUCKET_SIZES) {
+            if (size <= bucketSize) {
+                return bucketSize;
+            }
+        }
+        return CHUNK_SIZE;
+    }
+}
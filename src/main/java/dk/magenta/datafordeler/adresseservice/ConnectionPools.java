@@ -0,0 +1,179 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.IMetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Creates the pooled DataSources of the address service, and collects metrics from all of them.
+ * Pool settings are given by name, as understood by HikariCP (maximumPoolSize, minimumIdle, connectionTimeout,
+ * leakDetectionThreshold, autoCommit, ...). Settings named dataSource.&lt;property&gt; are passed on to the JDBC driver,
+ * which is where prepared statement caching is configured for drivers that support it.
+ * Settings that are not given keep the defaults below, or HikariCP's own.
+ */
+public final class ConnectionPools {
+
+    static final int DEFAULT_MAXIMUM_POOL_SIZE = 20;
+    static final long DEFAULT_CONNECTION_TIMEOUT = 30000;
+    static final long DEFAULT_LEAK_DETECTION_THRESHOLD = 30000;
+
+    private static final String DATASOURCE_PREFIX = "dataSource.";
+
+    private static final Map<String, Metrics> metrics = new ConcurrentHashMap<>();
+
+    private ConnectionPools() {
+    }
+
+    /**
+     * Connection wait times, timeouts and current pool state of one pool
+     */
+    public static class Metrics implements IMetricsTracker {
+        private final String poolName;
+        private final PoolStats poolStats;
+        private final LongAdder acquired = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder timeouts = new LongAdder();
+
+        Metrics(String poolName, PoolStats poolStats) {
+            this.poolName = poolName;
+            this.poolStats = poolStats;
+        }
+
+        /**
+         * Called when the pool is shut down; a closed pool is no longer listed
+         */
+        @Override
+        public void close() {
+            metrics.remove(this.poolName, this);
+        }
+
+        @Override
+        public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+            this.acquired.increment();
+            this.waitNanos.add(elapsedAcquiredNanos);
+            this.maxWaitNanos.accumulate(elapsedAcquiredNanos);
+        }
+
+        @Override
+        public void recordConnectionTimeout() {
+            this.timeouts.increment();
+        }
+
+        public int getActiveConnections() {
+            return this.poolStats.getActiveConnections();
+        }
+
+        public int getIdleConnections() {
+            return this.poolStats.getIdleConnections();
+        }
+
+        public int getTotalConnections() {
+            return this.poolStats.getTotalConnections();
+        }
+
+        public int getPendingThreads() {
+            return this.poolStats.getPendingThreads();
+        }
+
+        public long getAcquired() {
+            return this.acquired.sum();
+        }
+
+        public double getAverageWaitMillis() {
+            long acquired = this.acquired.sum();
+            return acquired == 0 ? 0 : this.waitNanos.sum() / (double) acquired / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public double getMaxWaitMillis() {
+            return this.maxWaitNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public long getTimeouts() {
+            return this.timeouts.sum();
+        }
+    }
+
+    private static final IMetricsTrackerFactory metricsTrackerFactory = (poolName, poolStats) -> {
+        Metrics poolMetrics = new Metrics(poolName, poolStats);
+        metrics.put(poolName, poolMetrics);
+        return poolMetrics;
+    };
+
+    /**
+     * @return Metrics of all pools, by pool name
+     */
+    public static Map<String, Metrics> getMetrics() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(metrics));
+    }
+
+    /**
+     * Creates a pooled DataSource. The pool is also registered with JMX under its name.
+     * @param settings Pool and driver settings, see the class documentation
+     */
+    public static HikariDataSource create(String poolName, String driverClass, String url, String username, String password, Map<String, String> settings) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(poolName);
+        if (driverClass != null && !driverClass.isEmpty()) {
+            config.setDriverClassName(driverClass);
+        }
+        config.setJdbcUrl(url);
+        config.setUsername(username);
+        config.setPassword(password);
+        config.setMaximumPoolSize(DEFAULT_MAXIMUM_POOL_SIZE);
+        config.setConnectionTimeout(DEFAULT_CONNECTION_TIMEOUT);
+        config.setLeakDetectionThreshold(DEFAULT_LEAK_DETECTION_THRESHOLD);
+        config.setRegisterMbeans(true);
+        config.setMetricsTrackerFactory(metricsTrackerFactory);
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            String name = setting.getKey();
+            String value = setting.getValue();
+            if (value == null || value.isEmpty()) {
+                continue;
+            }
+            if (name.startsWith(DATASOURCE_PREFIX)) {
+                config.addDataSourceProperty(name.substring(DATASOURCE_PREFIX.length()), value);
+            } else {
+                switch (name) {
+                    case "maximumPoolSize":
+                        config.setMaximumPoolSize(Integer.parseInt(value));
+                        break;
+                    case "minimumIdle":
+                        config.setMinimumIdle(Integer.parseInt(value));
+                        break;
+                    case "connectionTimeout":
+                        config.setConnectionTimeout(Long.parseLong(value));
+                        break;
+                    case "idleTimeout":
+                        config.setIdleTimeout(Long.parseLong(value));
+                        break;
+                    case "maxLifetime":
+                        config.setMaxLifetime(Long.parseLong(value));
+                        break;
+                    case "initializationFailTimeout":
+                        config.setInitializationFailTimeout(Long.parseLong(value));
+                        break;
+                    case "leakDetectionThreshold":
+                        config.setLeakDetectionThreshold(Long.parseLong(value));
+                        break;
+                    case "autoCommit":
+                        config.setAutoCommit(Boolean.parseBoolean(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown connection pool setting " + name);
+                }
+            }
+        }
+        return new HikariDataSource(config);
+    }
+}
@@ -0,0 +1,206 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import dk.magenta.datafordeler.core.database.SessionManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Keeps nodes sharing a database coherent after imports.
+ * A single row in the adresseservice_dataversion table, mapped by {@link DataVersionRow}, holds a version number
+ * and a fingerprint of the registration tables. Every node polls the row, which is a primary key lookup,
+ * and publishes a {@link DataVersionChangedEvent} when the version changes, so state derived from the
+ * database is refreshed on all nodes and not only on the one that imported.
+ * At a slower interval, every node computes the fingerprint, and increases the version if it differs from the
+ * stored one. The check and the increase are one conditional update, so an import bumps the version only once,
+ * however many nodes notice it.
+ */
+@Component
+public class DataVersion {
+
+    static final String TABLE = "adresseservice_dataversion";
+
+    private final SessionManager sessionManager;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    @Value("${dafo.adresseservice.coherence.enabled:false}")
+    private boolean enabled = false;
+
+    @Value("${dafo.adresseservice.coherence.pollInterval:5}")
+    private int pollIntervalSeconds = 5;
+
+    @Value("${dafo.adresseservice.coherence.detectInterval:60}")
+    private int detectIntervalSeconds = 60;
+
+    private Logger log = LogManager.getLogger(DataVersion.class);
+
+    private volatile Long lastVersion = null;
+
+    private volatile boolean rowChecked = false;
+
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public DataVersion(SessionManager sessionManager, ApplicationEventPublisher eventPublisher) {
+        this.sessionManager = sessionManager;
+        this.eventPublisher = eventPublisher;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!this.enabled) {
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "adresseservice-dataversion");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                this.poll();
+            } catch (RuntimeException e) {
+                log.error("Polling data version failed", e);
+            }
+        }, 0, this.pollIntervalSeconds, TimeUnit.SECONDS);
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                this.detectImport();
+            } catch (RuntimeException e) {
+                log.error("Detecting imports failed", e);
+            }
+        }, this.detectIntervalSeconds, this.detectIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The current shared data version
+     */
+    public long read() {
+        return this.inTransaction(session -> session.get(DataVersionRow.class, DataVersionRow.ID).getVersion());
+    }
+
+    /**
+     * Reads the shared data version, and publishes a {@link DataVersionChangedEvent} if it differs from the last one seen.
+     * The first read only records the version.
+     * @return true if the version changed
+     */
+    public boolean poll() {
+        long version = this.read();
+        Long previous = this.lastVersion;
+        this.lastVersion = version;
+        if (previous != null && previous != version) {
+            log.info("Data version changed from {} to {}", previous, version);
+            this.eventPublisher.publishEvent(new DataVersionChangedEvent(this, version));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Increases the shared data version if the registration tables have changed since the last increase
+     * @return true if this call increased the version
+     */
+    boolean detectImport() {
+        long fingerprint;
+        Session session = sessionManager.getSessionFactory().openSession();
+        try {
+            fingerprint = AddressSnapshotStore.getDataVersion(session);
+        } finally {
+            session.close();
+        }
+        int updated = this.inTransaction(versionSession -> {
+            // The first fingerprint is only recorded; the data it describes is what the nodes started with
+            versionSession.createQuery(
+                    "UPDATE " + DataVersionRow.class.getCanonicalName() + " v SET v.fingerprint = :fingerprint " +
+                            "WHERE v.id = :id AND v.fingerprint IS NULL"
+            ).setParameter("fingerprint", fingerprint).setParameter("id", DataVersionRow.ID).executeUpdate();
+            return versionSession.createQuery(
+                    "UPDATE " + DataVersionRow.class.getCanonicalName() + " v " +
+                            "SET v.version = v.version + 1, v.fingerprint = :fingerprint " +
+                            "WHERE v.id = :id AND v.fingerprint <> :fingerprint"
+            ).setParameter("fingerprint", fingerprint).setParameter("id", DataVersionRow.ID).executeUpdate();
+        });
+        if (updated > 0) {
+            log.info("Detected an import, increased the data version");
+            return true;
+        }
+        return false;
+    }
+
+    private <T> T inTransaction(Function<Session, T> work) {
+        this.ensureRow();
+        Session session = sessionManager.getSessionFactory().openSession();
+        try {
+            Transaction transaction = session.beginTransaction();
+            try {
+                T result = work.apply(session);
+                transaction.commit();
+                return result;
+            } catch (RuntimeException e) {
+                transaction.rollback();
+                throw e;
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Inserts the version row if it does not exist
+     */
+    private void ensureRow() {
+        if (this.rowChecked) {
+            return;
+        }
+        Session session = sessionManager.getSessionFactory().openSession();
+        try {
+            Transaction transaction = session.beginTransaction();
+            try {
+                if (session.get(DataVersionRow.class, DataVersionRow.ID) == null) {
+                    session.save(new DataVersionRow(DataVersionRow.ID));
+                }
+                transaction.commit();
+            } catch (RuntimeException e) {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+                // Another node may have inserted it in the meantime
+                if (!this.rowExists()) {
+                    throw e;
+                }
+            }
+        } finally {
+            session.close();
+        }
+        this.rowChecked = true;
+    }
+
+    private boolean rowExists() {
+        Session session = sessionManager.getSessionFactory().openSession();
+        try {
+            return session.get(DataVersionRow.class, DataVersionRow.ID) != null;
+        } finally {
+            session.close();
+        }
+    }
+}
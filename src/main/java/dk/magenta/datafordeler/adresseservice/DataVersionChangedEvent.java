@@ -0,0 +1,21 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published when the shared data version has changed, meaning that data was imported,
+ * possibly by another node. Listeners should refresh or discard state derived from the database.
+ */
+public class DataVersionChangedEvent extends ApplicationEvent {
+
+    private final long version;
+
+    public DataVersionChangedEvent(Object source, long version) {
+        super(source);
+        this.version = version;
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+}
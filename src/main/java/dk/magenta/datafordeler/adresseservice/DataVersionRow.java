@@ -0,0 +1,49 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * The single row of the shared data version table, see {@link DataVersion}.
+ * The table is created by Hibernate's schema management along with the other mapped entities.
+ */
+@Entity
+@Table(name = DataVersion.TABLE)
+public class DataVersionRow {
+
+    public static final int ID = 1;
+
+    @Id
+    @Column(name = "id")
+    private int id;
+
+    @Column(name = "version", nullable = false)
+    private long version;
+
+    /**
+     * Fingerprint of the registration tables when the version was last increased
+     */
+    @Column(name = "fingerprint")
+    private Long fingerprint;
+
+    public DataVersionRow() {
+    }
+
+    DataVersionRow(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+
+    public Long getFingerprint() {
+        return this.fingerprint;
+    }
+}
@@ -0,0 +1,34 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for one address service request, from the start of handler processing
+ * until the response has been written
+ */
+@Name("dk.magenta.datafordeler.adresseservice.Endpoint")
+@Label("Address Service Request")
+@Category({"Datafordeler", "Address Service"})
+@Description("An address service request")
+public class EndpointEvent extends Event {
+
+    @Label("Endpoint")
+    String endpoint;
+
+    @Label("Parameters")
+    String parameters;
+
+    @Label("User")
+    String user;
+
+    @Label("Status")
+    int status;
+
+    @Label("Result Count")
+    @Description("Number of results returned, or -1 if unknown")
+    int count;
+}
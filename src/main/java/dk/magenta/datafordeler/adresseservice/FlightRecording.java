@@ -0,0 +1,55 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import dk.magenta.datafordeler.core.user.DafoUserDetails;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Records an {@link EndpointEvent} for each request, so request latencies can be correlated with
+ * GC, JDBC and other activity in a Flight Recorder recording.
+ * Event fields are only filled in when the event is enabled and meets its threshold.
+ */
+@Component
+public class FlightRecording implements HandlerInterceptor {
+
+    private static final String REQUEST_ATTRIBUTE_EVENT = FlightRecording.class.getName() + ".event";
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        EndpointEvent event = new EndpointEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            request.setAttribute(REQUEST_ATTRIBUTE_EVENT, event);
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        Object attribute = request.getAttribute(REQUEST_ATTRIBUTE_EVENT);
+        if (!(attribute instanceof EndpointEvent)) {
+            return;
+        }
+        EndpointEvent event = (EndpointEvent) attribute;
+        event.end();
+        if (event.shouldCommit()) {
+            event.endpoint = request.getRequestURI();
+            StringJoiner parameters = new StringJoiner("&");
+            for (Map.Entry<String, String[]> parameter : request.getParameterMap().entrySet()) {
+                parameters.add(parameter.getKey() + "=" + String.join(",", parameter.getValue()));
+            }
+            event.parameters = parameters.toString();
+            Object user = request.getAttribute(AdmissionControl.REQUEST_ATTRIBUTE_USER);
+            event.user = user instanceof DafoUserDetails ? AdmissionControl.getUserKey((DafoUserDetails) user) : null;
+            event.status = ex != null ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : response.getStatus();
+            Object rows = request.getAttribute(AccessLog.REQUEST_ATTRIBUTE_ROWS);
+            event.count = rows instanceof Integer ? (Integer) rows : -1;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import dk.magenta.datafordeler.core.database.Registration;
+import dk.magenta.datafordeler.core.database.SessionManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of pre-encoded UTF-8 json fragments, by entity uuid and output shape, so responses can be assembled
+ * from bytes instead of rebuilding and serializing the same objects for every request.
+ * Fragments are evicted per entity: a background task looks for registrations added since the last check,
+ * and evicts the fragments of their entities, along with fragments that were built from them
+ * (such as an address that shows the name of its road).
+ * Because current data can also change with the passing of effect times, fragments expire after
+ * dafo.adresseservice.fragmentcache.maxAge seconds, and expired fragments are swept out at each check.
+ * Beyond dafo.adresseservice.fragmentcache.maxEntities entities, the entities cached first are dropped.
+ * <p>
+ * A fragment built from data read before an eviction could show the evicted data, so every eviction increases
+ * a generation counter. Callers take the generation before reading, and put drops fragments of an older generation.
+ */
+@Component
+public class FragmentCache {
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Value("${dafo.adresseservice.fragmentcache.enabled:false}")
+    private volatile boolean enabled;
+
+    @Value("${dafo.adresseservice.fragmentcache.maxEntities:100000}")
+    private int maxEntities;
+
+    @Value("${dafo.adresseservice.fragmentcache.maxAge:3600}")
+    private int maxAgeSeconds;
+
+    @Value("${dafo.adresseservice.fragmentcache.invalidateInterval:5}")
+    private int invalidateIntervalSeconds;
+
+    private Logger log = LogManager.getLogger(FragmentCache.class);
+
+    private static class Fragment {
+        final byte[] bytes;
+        final long created;
+
+        Fragment(byte[] bytes) {
+            this.bytes = bytes;
+            this.created = System.nanoTime();
+        }
+    }
+
+    private final ConcurrentHashMap<UUID, ConcurrentHashMap<String, Fragment>> fragments = new ConcurrentHashMap<>();
+
+    // Uuids of entities that fragments were built from, and the entities whose fragments they were built into
+    private final ConcurrentHashMap<UUID, Set<UUID>> dependents = new ConcurrentHashMap<>();
+
+    // Cached entities in the order they were first cached, for dropping the oldest ones; may hold evicted entities
+    private final ConcurrentLinkedQueue<UUID> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final HashMap<Class, Long> lastRegistrationIds = new HashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        if (this.enabled) {
+            this.invalidate(false);
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "adresseservice-fragmentcache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            if (this.enabled) {
+                this.invalidate(false);
+            }
+        }, this.invalidateIntervalSeconds, this.invalidateIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Turns the cache on or off. Either way, it is emptied.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.clear();
+        if (enabled) {
+            // Catch up with the registrations already present before caching anything
+            this.invalidate(false);
+        }
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return The cached fragment for the entity in the given shape, or null if there is none
+     */
+    public byte[] get(String shape, UUID uuid) {
+        if (!this.enabled) {
+            return null;
+        }
+        Map<String, Fragment> entityFragments = this.fragments.get(uuid);
+        Fragment fragment = entityFragments != null ? entityFragments.get(shape) : null;
+        if (fragment == null) {
+            return null;
+        }
+        if (System.nanoTime() - fragment.created > TimeUnit.SECONDS.toNanos(this.maxAgeSeconds)) {
+            entityFragments.remove(shape, fragment);
+            return null;
+        }
+        return fragment.bytes;
+    }
+
+    /**
+     * @return The current generation, to be taken before reading the data that a fragment is built from
+     */
+    public long getGeneration() {
+        return this.generation.get();
+    }
+
+    /**
+     * Caches a fragment for the entity in the given shape, unless something was evicted since the given generation
+     * @param dependencies Uuids of other entities the fragment was built from
+     * @param generation Generation taken before the data was read
+     */
+    public void put(String shape, UUID uuid, byte[] bytes, Collection<UUID> dependencies, long generation) {
+        if (!this.enabled || this.generation.get() != generation) {
+            return;
+        }
+        Fragment fragment = new Fragment(bytes);
+        ConcurrentHashMap<String, Fragment> entityFragments = this.fragments.computeIfAbsent(uuid, k -> {
+            this.insertionOrder.add(k);
+            return new ConcurrentHashMap<>();
+        });
+        entityFragments.put(shape, fragment);
+        for (UUID dependency : dependencies) {
+            // Added under the map's lock, so a concurrent sweep cannot drop the set while it is being added to
+            this.dependents.compute(dependency, (k, entityDependents) -> {
+                if (entityDependents == null) {
+                    entityDependents = ConcurrentHashMap.newKeySet();
+                }
+                entityDependents.add(uuid);
+                return entityDependents;
+            });
+        }
+        if (this.generation.get() != generation) {
+            // An eviction ran while the fragment was being added, and may have missed it
+            entityFragments.remove(shape, fragment);
+            return;
+        }
+        while (this.fragments.size() > this.maxEntities) {
+            UUID oldest = this.insertionOrder.poll();
+            if (oldest == null) {
+                break;
+            }
+            this.fragments.remove(oldest);
+        }
+    }
+
+    /**
+     * Evicts the fragments of an entity, and the fragments built from it
+     */
+    public void evict(UUID uuid) {
+        this.generation.incrementAndGet();
+        this.fragments.remove(uuid);
+        Set<UUID> entityDependents = this.dependents.remove(uuid);
+        if (entityDependents != null) {
+            for (UUID dependent : entityDependents) {
+                this.fragments.remove(dependent);
+            }
+        }
+    }
+
+    public void clear() {
+        this.generation.incrementAndGet();
+        this.fragments.clear();
+        this.dependents.clear();
+        this.insertionOrder.clear();
+    }
+
+    /**
+     * Removes expired fragments, and the bookkeeping of entities that are no longer cached
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        long maxAge = TimeUnit.SECONDS.toNanos(this.maxAgeSeconds);
+        for (UUID uuid : this.fragments.keySet()) {
+            this.fragments.computeIfPresent(uuid, (k, entityFragments) -> {
+                entityFragments.values().removeIf(fragment -> now - fragment.created > maxAge);
+                return entityFragments.isEmpty() ? null : entityFragments;
+            });
+        }
+        for (UUID dependency : this.dependents.keySet()) {
+            this.dependents.computeIfPresent(dependency, (k, entityDependents) -> {
+                entityDependents.removeIf(dependent -> !this.fragments.containsKey(dependent));
+                return entityDependents.isEmpty() ? null : entityDependents;
+            });
+        }
+        HashSet<UUID> seen = new HashSet<>();
+        this.insertionOrder.removeIf(uuid -> !this.fragments.containsKey(uuid) || !seen.add(uuid));
+    }
+
+    @EventListener
+    public void onDataVersionChanged(DataVersionChangedEvent event) {
+        if (this.enabled) {
+            this.invalidate(true);
+        }
+    }
+
+    /**
+     * Evicts the entities that have registrations added since the last check
+     * @param clearIfNoneFound Empty the whole cache if no added registrations are found,
+     *                         because the data has changed in some other way, such as deletion
+     */
+    synchronized void invalidate(boolean clearIfNoneFound) {
+        try {
+            Session session = sessionManager.getSessionFactory().openSession();
+            try {
+                boolean found = false;
+                for (Class<? extends Registration> registrationClass : GladdrregRegistrations.ALL) {
+                    Long lastId = this.lastRegistrationIds.get(registrationClass);
+                    if (lastId == null) {
+                        // Nothing cached can be older than this
+                        Number maxId = (Number) session.createQuery(
+                                "SELECT max(r.id) FROM " + registrationClass.getCanonicalName() + " r"
+                        ).uniqueResult();
+                        this.lastRegistrationIds.put(registrationClass, maxId != null ? maxId.longValue() : 0L);
+                        continue;
+                    }
+                    List<Object[]> rows = session.createQuery(
+                            "SELECT r.id, r.entity.identification.uuid FROM " + registrationClass.getCanonicalName() + " r " +
+                                    "WHERE r.id > :lastId",
+                            Object[].class
+                    ).setParameter("lastId", lastId).getResultList();
+                    for (Object[] row : rows) {
+                        this.evict((UUID) row[1]);
+                        lastId = Math.max(lastId, ((Number) row[0]).longValue());
+                        found = true;
+                    }
+                    this.lastRegistrationIds.put(registrationClass, lastId);
+                }
+                if (clearIfNoneFound && !found) {
+                    this.clear();
+                } else {
+                    this.sweep();
+                }
+            } finally {
+                session.close();
+            }
+        } catch (RuntimeException e) {
+            log.error("Fragment cache invalidation failed, emptying cache", e);
+            this.clear();
+        }
+    }
+}
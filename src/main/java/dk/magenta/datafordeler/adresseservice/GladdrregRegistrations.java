@@ -0,0 +1,29 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import dk.magenta.datafordeler.core.database.Registration;
+import dk.magenta.datafordeler.gladdrreg.data.address.AddressRegistration;
+import dk.magenta.datafordeler.gladdrreg.data.bnumber.BNumberRegistration;
+import dk.magenta.datafordeler.gladdrreg.data.locality.LocalityRegistration;
+import dk.magenta.datafordeler.gladdrreg.data.municipality.MunicipalityRegistration;
+import dk.magenta.datafordeler.gladdrreg.data.road.RoadRegistration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The registration classes of the GLADDRREG entities that the address service reads
+ */
+final class GladdrregRegistrations {
+
+    static final List<Class<? extends Registration>> ALL = Collections.unmodifiableList(Arrays.asList(
+            MunicipalityRegistration.class,
+            LocalityRegistration.class,
+            RoadRegistration.class,
+            AddressRegistration.class,
+            BNumberRegistration.class
+    ));
+
+    private GladdrregRegistrations() {
+    }
+}
@@ -0,0 +1,87 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * A json response assembled from pre-encoded UTF-8 fragments, either a single value or a list of values.
+ * The fragments are written to the response as they are, without being parsed or copied.
+ */
+public final class JsonFragments {
+
+    private final ArrayList<byte[]> fragments = new ArrayList<>();
+    private final boolean array;
+
+    private static final byte[] START = "[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = ",".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] END = "]".getBytes(StandardCharsets.UTF_8);
+
+    private JsonFragments(boolean array) {
+        this.array = array;
+    }
+
+    /**
+     * @return An empty json list, to which fragments can be added
+     */
+    public static JsonFragments array() {
+        return new JsonFragments(true);
+    }
+
+    /**
+     * @return A single json value
+     */
+    public static JsonFragments of(byte[] fragment) {
+        JsonFragments value = new JsonFragments(false);
+        value.fragments.add(fragment);
+        return value;
+    }
+
+    public static JsonFragments of(String json) {
+        return of(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public JsonFragments add(byte[] fragment) {
+        if (!this.array) {
+            throw new IllegalStateException("Only lists can be added to");
+        }
+        this.fragments.add(fragment);
+        return this;
+    }
+
+    /**
+     * @return Number of values in a list, or 1 for a single value
+     */
+    public int size() {
+        return this.fragments.size();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        if (this.array) {
+            out.write(START);
+        }
+        for (int i = 0; i < this.fragments.size(); i++) {
+            if (i > 0) {
+                out.write(SEPARATOR);
+            }
+            out.write(this.fragments.get(i));
+        }
+        if (this.array) {
+            out.write(END);
+        }
+    }
+
+    @Override
+    public String toString() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            this.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
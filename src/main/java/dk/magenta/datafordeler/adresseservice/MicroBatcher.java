@@ -0,0 +1,158 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Collects single-key lookups from concurrent requests, and resolves them together.
+ * A dispatcher thread takes the first waiting key, then keeps collecting keys until the window has passed
+ * or the batch is full, and hands the distinct keys to the loader in one call. Each waiting request is then
+ * completed with the value for its own key, or with the loader's exception.
+ * While one dispatcher is resolving a batch, the next one collects the following requests.
+ * A request that has not been resolved within the window and the timeout is looked up on its own,
+ * on the requesting thread, so a stuck batch does not hold up its requests indefinitely.
+ */
+public class MicroBatcher<K, V> {
+
+    private static class Request<K, V> {
+        final K key;
+        final CompletableFuture<V> result = new CompletableFuture<>();
+
+        Request(K key) {
+            this.key = key;
+        }
+    }
+
+    private final LinkedBlockingQueue<Request<K, V>> queue = new LinkedBlockingQueue<>();
+    private final Function<Collection<K>, Map<K, V>> loader;
+    private final long windowNanos;
+    private final long timeoutNanos;
+    private final int maxBatchSize;
+    private final ArrayList<Thread> dispatchers = new ArrayList<>();
+    private volatile boolean stopped = false;
+
+    private Logger log = LogManager.getLogger(MicroBatcher.class);
+
+    /**
+     * @param name Name prefix of the dispatcher threads
+     * @param windowMicros Time to wait for more keys after the first one, in microseconds
+     * @param maxBatchSize Maximum number of requests resolved together
+     * @param threads Number of dispatcher threads
+     * @param timeoutMillis Time to wait for a batch after the window, before looking the key up on its own
+     * @param loader Resolves a set of keys, returning the values found; keys without a value resolve to null
+     */
+    public MicroBatcher(String name, long windowMicros, int maxBatchSize, int threads, long timeoutMillis, Function<Collection<K>, Map<K, V>> loader) {
+        this.loader = loader;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            Thread thread = new Thread(this::dispatch, name + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            this.dispatchers.add(thread);
+        }
+    }
+
+    /**
+     * Waits for the key to be resolved in the next batch, or looks it up on its own if the batch takes too long
+     * @return The value found for the key, or null if there is none
+     */
+    public V get(K key) {
+        if (this.stopped) {
+            throw new IllegalStateException("Batcher is stopped");
+        }
+        Request<K, V> request = new Request<>(key);
+        this.queue.add(request);
+        if (this.stopped && this.queue.remove(request)) {
+            throw new IllegalStateException("Batcher is stopped");
+        }
+        try {
+            return request.result.get(this.windowNanos + this.timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // If a dispatcher still resolves the request later, the result is not used
+            this.queue.remove(request);
+            log.warn("Batched lookup of {} timed out, looking it up on its own", key);
+            return this.loader.apply(Collections.singleton(key)).get(key);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for batched lookup", e);
+        }
+    }
+
+    /**
+     * Stops the dispatcher threads, failing the requests still waiting
+     */
+    public void stop() {
+        this.stopped = true;
+        for (Thread dispatcher : this.dispatchers) {
+            dispatcher.interrupt();
+        }
+        Request<K, V> request;
+        while ((request = this.queue.poll()) != null) {
+            request.result.completeExceptionally(new IllegalStateException("Batcher is stopped"));
+        }
+    }
+
+    private void dispatch() {
+        ArrayList<Request<K, V>> batch = new ArrayList<>();
+        while (!this.stopped) {
+            try {
+                batch.add(this.queue.take());
+                long deadline = System.nanoTime() + this.windowNanos;
+                while (batch.size() < this.maxBatchSize) {
+                    // Once the window has passed, only take the requests that are already waiting
+                    long remaining = deadline - System.nanoTime();
+                    Request<K, V> request = remaining > 0 ? this.queue.poll(remaining, TimeUnit.NANOSECONDS) : this.queue.poll();
+                    if (request == null) {
+                        break;
+                    }
+                    batch.add(request);
+                }
+            } catch (InterruptedException e) {
+                for (Request<K, V> request : batch) {
+                    request.result.completeExceptionally(new IllegalStateException("Batcher is stopped"));
+                }
+                return;
+            }
+            this.resolve(batch);
+            batch.clear();
+        }
+    }
+
+    private void resolve(List<Request<K, V>> batch) {
+        LinkedHashSet<K> keys = new LinkedHashSet<>();
+        for (Request<K, V> request : batch) {
+            keys.add(request.key);
+        }
+        try {
+            Map<K, V> results = this.loader.apply(keys);
+            for (Request<K, V> request : batch) {
+                request.result.complete(results.get(request.key));
+            }
+        } catch (Throwable e) {
+            log.error("Batched lookup of " + keys.size() + " keys failed", e);
+            for (Request<K, V> request : batch) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import dk.magenta.datafordeler.core.database.SessionManager;
+import dk.magenta.datafordeler.gladdrreg.data.address.AddressEntity;
+import dk.magenta.datafordeler.gladdrreg.data.bnumber.BNumberEntity;
+import dk.magenta.datafordeler.gladdrreg.data.locality.LocalityEntity;
+import dk.magenta.datafordeler.gladdrreg.data.road.RoadEntity;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers lookups of uuids and codes that are known not to exist, without opening a database session.
+ * A bloom filter per kind of key holds every key present in the database, so a key missing from the
+ * filter is certainly unknown. Keys that pass the filter but still gave an empty result are kept in a
+ * small bounded miss cache for a while.
+ * The filters are rebuilt when addresses are reloaded, and whenever the import version of the database
+ * changes, so newly imported keys are unknown for at most dafo.adresseservice.negativecache.revalidateInterval seconds.
+ */
+@Component
+public class NegativeCache {
+
+    public enum Kind {
+        ADDRESS, LOCALITY, ROAD, BNUMBER
+    }
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Value("${dafo.adresseservice.negativecache.enabled:false}")
+    private boolean enabled;
+
+    @Value("${dafo.adresseservice.negativecache.falsePositiveRate:0.01}")
+    private double falsePositiveRate;
+
+    @Value("${dafo.adresseservice.negativecache.missCacheSize:10000}")
+    private int missCacheSize;
+
+    @Value("${dafo.adresseservice.negativecache.missCacheTtl:60}")
+    private int missCacheTtlSeconds;
+
+    @Value("${dafo.adresseservice.negativecache.revalidateInterval:60}")
+    private int revalidateIntervalSeconds;
+
+    private Logger log = LogManager.getLogger(NegativeCache.class);
+
+    /**
+     * Fixed-size bloom filter over 64-bit key hashes, using double hashing to derive the probe positions
+     */
+    static class BloomFilter {
+        private final long[] bits;
+        private final long bitCount;
+        private final int hashCount;
+
+        BloomFilter(int expectedKeys, double falsePositiveRate) {
+            int keys = Math.max(1, expectedKeys);
+            long bitCount = (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            bitCount = Math.max(64, bitCount);
+            this.bits = new long[(int) ((bitCount + 63) / 64)];
+            this.bitCount = this.bits.length * 64L;
+            this.hashCount = Math.max(1, (int) Math.round((double) this.bitCount / keys * Math.log(2)));
+        }
+
+        void add(long hash) {
+            long h1 = hash;
+            long h2 = mix(hash) | 1;
+            for (int i = 0; i < this.hashCount; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, this.bitCount);
+                this.bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(long hash) {
+            long h1 = hash;
+            long h2 = mix(hash) | 1;
+            for (int i = 0; i < this.hashCount; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, this.bitCount);
+                if ((this.bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Bounded miss cache, evicting the oldest entry when full
+     */
+    private static class MissCache extends LinkedHashMap<String, Long> {
+        private final int maxSize;
+
+        MissCache(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return this.size() > this.maxSize;
+        }
+    }
+
+    private static class State {
+        final long dataVersion;
+        final EnumMap<Kind, BloomFilter> filters;
+        final MissCache misses;
+
+        State(long dataVersion, EnumMap<Kind, BloomFilter> filters, int missCacheSize) {
+            this.dataVersion = dataVersion;
+            this.filters = filters;
+            this.misses = new MissCache(missCacheSize);
+        }
+    }
+
+    private volatile State state = null;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        if (!this.enabled) {
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "adresseservice-negativecache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(
+                this::revalidate, this.revalidateIntervalSeconds, this.revalidateIntervalSeconds, TimeUnit.SECONDS
+        );
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Rebuilds the filters from the database, and empties the miss cache
+     */
+    public void rebuild(Session session) {
+        long dataVersion = AddressSnapshotStore.getDataVersion(session);
+        EnumMap<Kind, BloomFilter> filters = new EnumMap<>(Kind.class);
+        filters.put(Kind.ADDRESS, this.uuidFilter(session, AddressEntity.class));
+        filters.put(Kind.LOCALITY, this.uuidFilter(session, LocalityEntity.class));
+        filters.put(Kind.ROAD, this.uuidFilter(session, RoadEntity.class));
+        List<String> codes = session.createQuery(
+                "SELECT DISTINCT d.code FROM " + BNumberEntity.class.getCanonicalName() + " e " +
+                        "JOIN e.registrations r JOIN r.effects v JOIN v.dataItems d " +
+                        "WHERE d.code IS NOT NULL",
+                String.class
+        ).getResultList();
+        BloomFilter codeFilter = new BloomFilter(codes.size(), this.falsePositiveRate);
+        for (String code : codes) {
+            codeFilter.add(hash(code.trim()));
+        }
+        filters.put(Kind.BNUMBER, codeFilter);
+        this.state = new State(dataVersion, filters, this.missCacheSize);
+    }
+
+    /**
+     * Discards the filters and the miss cache, so every key is looked up again
+     */
+    public void clear() {
+        this.state = null;
+    }
+
+    /**
+     * Rebuilds the filters if the import version of the database has changed
+     */
+    public void revalidate() {
+        try {
+            Session session = sessionManager.getSessionFactory().openSession();
+            try {
+                State current = this.state;
+                if (current == null || current.dataVersion != AddressSnapshotStore.getDataVersion(session)) {
+                    this.rebuild(session);
+                    log.info("Rebuilt negative cache");
+                }
+            } finally {
+                session.close();
+            }
+        } catch (RuntimeException e) {
+            log.error("Negative cache revalidation failed", e);
+        }
+    }
+
+    /**
+     * @return true if the uuid certainly gives an empty result, false if it must be looked up
+     */
+    public boolean isKnownMissing(Kind kind, UUID uuid) {
+        State current = this.state;
+        if (current == null) {
+            return false;
+        }
+        return !current.filters.get(kind).mightContain(hash(uuid)) || isCachedMiss(current, key(kind, uuid.toString()));
+    }
+
+    /**
+     * @return true if the code certainly gives an empty result, false if it must be looked up
+     */
+    public boolean isKnownMissing(Kind kind, String code) {
+        State current = this.state;
+        if (current == null) {
+            return false;
+        }
+        String trimmed = code.trim();
+        return !current.filters.get(kind).mightContain(hash(trimmed)) || isCachedMiss(current, key(kind, trimmed));
+    }
+
+    /**
+     * Remembers that a lookup of the uuid gave an empty result
+     */
+    public void recordMiss(Kind kind, UUID uuid) {
+        this.recordMiss(kind, uuid.toString());
+    }
+
+    /**
+     * Remembers that a lookup of the code gave an empty result
+     */
+    public void recordMiss(Kind kind, String code) {
+        State current = this.state;
+        if (current == null) {
+            return;
+        }
+        long expiry = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.missCacheTtlSeconds);
+        synchronized (current.misses) {
+            current.misses.put(key(kind, code.trim()), expiry);
+        }
+    }
+
+    private static boolean isCachedMiss(State state, String key) {
+        synchronized (state.misses) {
+            Long expiry = state.misses.get(key);
+            if (expiry == null) {
+                return false;
+            }
+            if (expiry - System.nanoTime() < 0) {
+                state.misses.remove(key);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private BloomFilter uuidFilter(Session session, Class entityClass) {
+        List<UUID> uuids = session.createQuery(
+                "SELECT e.identification.uuid FROM " + entityClass.getCanonicalName() + " e",
+                UUID.class
+        ).getResultList();
+        BloomFilter filter = new BloomFilter(uuids.size(), this.falsePositiveRate);
+        for (UUID uuid : uuids) {
+            filter.add(hash(uuid));
+        }
+        return filter;
+    }
+
+    private static String key(Kind kind, String value) {
+        return kind.name() + ":" + value;
+    }
+
+    static long hash(UUID uuid) {
+        return mix(uuid.getMostSignificantBits() ^ mix(uuid.getLeastSignificantBits()));
+    }
+
+    static long hash(String value) {
+        // FNV-1a over the UTF-8 bytes, finished with the Murmur3 finalizer
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
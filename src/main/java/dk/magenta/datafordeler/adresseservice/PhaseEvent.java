@@ -0,0 +1,60 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for one phase of an address service request.
+ * Phase events are recorded on the request thread, inside the {@link EndpointEvent} of their request.
+ * Phases are closed with try-with-resources, so a phase that fails is recorded too, with a count of -1.
+ * When recording is off, begin and close reduce to a check of a disabled flag.
+ */
+@Name("dk.magenta.datafordeler.adresseservice.Phase")
+@Label("Address Service Request Phase")
+@Category({"Datafordeler", "Address Service"})
+@Description("A phase of an address service request")
+public class PhaseEvent extends Event implements AutoCloseable {
+
+    public static final String PARAMETERS = "parameters";
+    public static final String USER = "user";
+    public static final String QUERY = "query";
+    public static final String BNUMBERS = "bnumbers";
+    public static final String ROADS = "roads";
+    public static final String LOCALITIES = "localities";
+    public static final String SERIALIZATION = "serialization";
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Result Count")
+    @Description("Number of rows or entities produced by the phase, or -1 if not applicable or the phase failed")
+    int count = -1;
+
+    /**
+     * @return A started event for the given phase, to be closed when the phase is done
+     */
+    static PhaseEvent begin(String phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Sets the number of rows or entities produced by the phase
+     */
+    void setCount(int count) {
+        this.count = count;
+    }
+
+    @Override
+    public void close() {
+        this.end();
+        if (this.shouldCommit()) {
+            this.commit();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.service.spi.Configurable;
+import org.hibernate.service.spi.Stoppable;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hibernate ConnectionProvider backed by a HikariCP pool, replacing Hibernate's built-in connection handling.
+ * Enabled with hibernate.connection.provider_class in hibernate.cfg.xml. The connection is configured with the
+ * usual hibernate.connection.* settings, and the pool with settings prefixed by hibernate.adresseservice.pool.,
+ * see {@link ConnectionPools}. Pool settings that are not given keep the defaults of ConnectionPools.
+ * Connections are handed out with hibernate.connection.autocommit, which is off unless set, as with Hibernate's
+ * own connection handling.
+ * Each provider gets a pool name of its own, so the pools of several SessionFactories are told apart
+ * in JMX and in the pool metrics.
+ */
+public class PooledConnectionProvider implements ConnectionProvider, Configurable, Stoppable {
+
+    static final String SETTINGS_PREFIX = "hibernate.adresseservice.pool.";
+
+    static final String POOL_NAME = "adresseservice-primary";
+
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    private HikariDataSource dataSource;
+
+    @Override
+    public void configure(Map configurationValues) {
+        HashMap<String, String> settings = new HashMap<>();
+        for (Object entry : configurationValues.entrySet()) {
+            Map.Entry setting = (Map.Entry) entry;
+            String name = String.valueOf(setting.getKey());
+            if (name.startsWith(SETTINGS_PREFIX)) {
+                settings.put(name.substring(SETTINGS_PREFIX.length()), String.valueOf(setting.getValue()));
+            }
+        }
+        settings.put("autoCommit", String.valueOf(ConfigurationHelper.getBoolean(AvailableSettings.AUTOCOMMIT, configurationValues, false)));
+        this.dataSource = ConnectionPools.create(
+                POOL_NAME + "-" + poolCount.incrementAndGet(),
+                (String) configurationValues.get(AvailableSettings.DRIVER),
+                (String) configurationValues.get(AvailableSettings.URL),
+                (String) configurationValues.get(AvailableSettings.USER),
+                (String) configurationValues.get(AvailableSettings.PASS),
+                settings
+        );
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return this.dataSource.getConnection();
+    }
+
+    @Override
+    public void closeConnection(Connection connection) throws SQLException {
+        connection.close();
+    }
+
+    @Override
+    public boolean supportsAggressiveRelease() {
+        return false;
+    }
+
+    @Override
+    public void stop() {
+        if (this.dataSource != null) {
+            this.dataSource.close();
+        }
+    }
+
+    @Override
+    public boolean isUnwrappableAs(Class unwrapType) {
+        return ConnectionProvider.class.equals(unwrapType) ||
+                PooledConnectionProvider.class.isAssignableFrom(unwrapType) ||
+                DataSource.class.isAssignableFrom(unwrapType);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(Class<T> unwrapType) {
+        if (ConnectionProvider.class.equals(unwrapType) || PooledConnectionProvider.class.isAssignableFrom(unwrapType)) {
+            return (T) this;
+        }
+        if (DataSource.class.isAssignableFrom(unwrapType)) {
+            return (T) this.dataSource;
+        }
+        throw new IllegalArgumentException("Cannot unwrap to " + unwrapType);
+    }
+}
@@ -0,0 +1,291 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import dk.magenta.datafordeler.core.database.Registration;
+import dk.magenta.datafordeler.core.database.SessionManager;
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.BaseSessionEventListener;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes the read-only query traffic of the address service to a replica database, when one is configured
+ * with dafo.adresseservice.replica.url.
+ * Replica sessions share the primary SessionFactory and its mappings, but run on a connection to the replica.
+ * A background check compares the latest registration timestamps of the primary and the replica, and queries
+ * fall back to the primary while the replica lags more than dafo.adresseservice.replica.maxLag seconds,
+ * or cannot be reached. Work run through {@link #read} is retried on the primary if it fails on the replica.
+ */
+@Component
+public class ReadReplica {
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Value("${dafo.adresseservice.replica.url:}")
+    private String url;
+
+    @Value("${dafo.adresseservice.replica.username:}")
+    private String username;
+
+    @Value("${dafo.adresseservice.replica.password:}")
+    private String password;
+
+    @Value("${dafo.adresseservice.replica.maxLag:300}")
+    private long maxLagSeconds;
+
+    @Value("${dafo.adresseservice.replica.checkInterval:30}")
+    private int checkIntervalSeconds;
+
+    @Value("${dafo.adresseservice.replica.pool.maximumPoolSize:20}")
+    private String maximumPoolSize;
+
+    @Value("${dafo.adresseservice.replica.pool.connectionTimeout:5000}")
+    private String connectionTimeout;
+
+    @Value("${dafo.adresseservice.replica.pool.leakDetectionThreshold:30000}")
+    private String leakDetectionThreshold;
+
+    static final String POOL_NAME = "adresseservice-replica";
+
+    private Logger log = LogManager.getLogger(ReadReplica.class);
+
+    private volatile HikariDataSource dataSource = null;
+
+    private volatile boolean available = false;
+
+    // Open sessions on the replica connection
+    private final Set<Session> replicaSessions = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        if (this.url == null || this.url.isEmpty()) {
+            return;
+        }
+        this.connect(this.url, this.username, this.password);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "adresseservice-replica");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::checkLag, this.checkIntervalSeconds, this.checkIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+        this.disconnect();
+    }
+
+    /**
+     * Starts routing queries to the replica at the given JDBC url, once it has passed a lag check.
+     * Connections to the replica are pooled.
+     */
+    public synchronized void connect(String url, String username, String password) {
+        this.disconnect();
+        HashMap<String, String> settings = new HashMap<>();
+        settings.put("maximumPoolSize", this.maximumPoolSize);
+        settings.put("connectionTimeout", this.connectionTimeout);
+        settings.put("leakDetectionThreshold", this.leakDetectionThreshold);
+        // Start even if the replica is down; the lag check keeps it out of rotation until it is reachable
+        settings.put("initializationFailTimeout", "-1");
+        this.dataSource = ConnectionPools.create(POOL_NAME, null, url, username, password, settings);
+        this.checkLag();
+    }
+
+    /**
+     * Stops routing queries to the replica, and closes its connection pool
+     */
+    public synchronized void disconnect() {
+        this.available = false;
+        HikariDataSource dataSource = this.dataSource;
+        this.dataSource = null;
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * @return true if queries are currently routed to the replica
+     */
+    public boolean isUsingReplica() {
+        return this.dataSource != null && this.available;
+    }
+
+    /**
+     * Work on a read-only session
+     */
+    public interface SessionWork<T, X extends Exception> {
+        T execute(Session session) throws X;
+    }
+
+    /**
+     * Runs read-only work on a session from {@link #openSession()}, and closes the session afterwards.
+     * If the work fails on the replica with a JDBC error, such as a dropped connection, the replica is taken
+     * out of rotation until the next lag check, and the work is run again on a primary session.
+     * Since it may run twice, the work should not change shared state before its queries are done.
+     */
+    public <T, X extends Exception> T read(SessionWork<T, X> work) throws X {
+        Session session = this.openReplicaSession();
+        if (session != null) {
+            try {
+                return work.execute(session);
+            } catch (RuntimeException e) {
+                if (!isJdbcFailure(e)) {
+                    throw e;
+                }
+                log.warn("Query failed on replica, retrying on primary", e);
+                this.available = false;
+            } finally {
+                session.close();
+            }
+        }
+        session = sessionManager.getSessionFactory().openSession();
+        try {
+            return work.execute(session);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Opens a session for read-only queries: on the replica if it is configured and up to date, otherwise on the primary.
+     * The replica connection is closed along with the session.
+     */
+    public Session openSession() {
+        Session session = this.openReplicaSession();
+        return session != null ? session : sessionManager.getSessionFactory().openSession();
+    }
+
+    /**
+     * @return true if the session runs on the replica, which may lag behind the primary
+     */
+    public boolean isReplica(Session session) {
+        return this.replicaSessions.contains(session);
+    }
+
+    /**
+     * @return A session on the replica, or null if it is not in use or cannot be reached
+     */
+    private Session openReplicaSession() {
+        if (!this.isUsingReplica()) {
+            return null;
+        }
+        try {
+            Connection connection = this.getReplicaConnection();
+            Session session = sessionManager.getSessionFactory().withOptions().connection(connection).openSession();
+            this.replicaSessions.add(session);
+            session.addEventListeners(new BaseSessionEventListener() {
+                @Override
+                public void end() {
+                    replicaSessions.remove(session);
+                    try {
+                        connection.close();
+                    } catch (SQLException e) {
+                        log.warn("Could not close replica connection", e);
+                    }
+                }
+            });
+            return session;
+        } catch (SQLException e) {
+            log.warn("Replica unavailable, falling back to primary", e);
+            this.available = false;
+            return null;
+        }
+    }
+
+    private static boolean isJdbcFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares the latest registration timestamps of the primary and the replica,
+     * and routes queries to the replica only if it is reachable and not too far behind
+     */
+    public void checkLag() {
+        if (this.dataSource == null) {
+            return;
+        }
+        try {
+            OffsetDateTime primaryLatest;
+            Session session = sessionManager.getSessionFactory().openSession();
+            try {
+                primaryLatest = getLatestRegistration(session);
+            } finally {
+                session.close();
+            }
+            OffsetDateTime replicaLatest;
+            try (Connection connection = this.getReplicaConnection()) {
+                session = sessionManager.getSessionFactory().withOptions().connection(connection).openSession();
+                try {
+                    replicaLatest = getLatestRegistration(session);
+                } finally {
+                    session.close();
+                }
+            }
+            Duration lag = primaryLatest == null ? Duration.ZERO
+                    : replicaLatest == null ? ChronoUnit.FOREVER.getDuration()
+                    : Duration.between(replicaLatest, primaryLatest);
+            boolean available = lag.getSeconds() <= this.maxLagSeconds;
+            if (available != this.available) {
+                log.info(available ? "Routing queries to replica" : "Replica lags by {}, routing queries to primary", lag);
+            }
+            this.available = available;
+        } catch (SQLException | RuntimeException e) {
+            if (this.available) {
+                log.warn("Replica check failed, routing queries to primary", e);
+            }
+            this.available = false;
+        }
+    }
+
+    private Connection getReplicaConnection() throws SQLException {
+        HikariDataSource dataSource = this.dataSource;
+        if (dataSource == null) {
+            throw new SQLException("Replica is not connected");
+        }
+        Connection connection = dataSource.getConnection();
+        connection.setReadOnly(true);
+        return connection;
+    }
+
+    private static OffsetDateTime getLatestRegistration(Session session) {
+        OffsetDateTime latest = null;
+        for (Class<? extends Registration> registrationClass : GladdrregRegistrations.ALL) {
+            OffsetDateTime registrationFrom = session.createQuery(
+                    "SELECT max(r.registrationFrom) FROM " + registrationClass.getCanonicalName() + " r",
+                    OffsetDateTime.class
+            ).uniqueResult();
+            if (registrationFrom != null && (latest == null || registrationFrom.isAfter(latest))) {
+                latest = registrationFrom;
+            }
+        }
+        return latest;
+    }
+}
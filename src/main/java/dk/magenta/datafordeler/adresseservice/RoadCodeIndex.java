@@ -0,0 +1,112 @@
+package dk.magenta.datafordeler.adresseservice;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable lookup of roads by municipality code and road code.
+ * The two codes are packed into one primitive long, and kept in an open-addressing table
+ * with linear probing, so a lookup needs neither boxing nor UUID strings.
+ */
+public class RoadCodeIndex {
+
+    private final long[] keys;
+    private final AddressHierarchy.Road[] roads;
+    private final int mask;
+    private final int size;
+
+    public static final RoadCodeIndex EMPTY = new RoadCodeIndex(
+            Collections.emptyMap(), Collections.emptyList(), Collections.emptyList()
+    );
+
+    /**
+     * @param municipalities Municipality codes and their uuids
+     * @param localities Localities, used to find the municipality of each road
+     * @param roads Roads to index; roads without a code or a known municipality are left out
+     */
+    public RoadCodeIndex(Map<Integer, UUID> municipalities, Collection<AddressHierarchy.Locality> localities, Collection<AddressHierarchy.Road> roads) {
+        HashMap<UUID, Integer> municipalityCodes = new HashMap<>();
+        for (Map.Entry<Integer, UUID> municipality : municipalities.entrySet()) {
+            municipalityCodes.put(municipality.getValue(), municipality.getKey());
+        }
+        HashMap<UUID, Integer> localityMunicipalityCodes = new HashMap<>();
+        for (AddressHierarchy.Locality locality : localities) {
+            Integer municipalityCode = municipalityCodes.get(locality.municipality);
+            if (municipalityCode != null) {
+                localityMunicipalityCodes.put(locality.uuid, municipalityCode);
+            }
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(2, roads.size() * 2) - 1) << 1;
+        this.keys = new long[capacity];
+        this.roads = new AddressHierarchy.Road[capacity];
+        this.mask = capacity - 1;
+        int size = 0;
+        for (AddressHierarchy.Road road : roads) {
+            Integer municipalityCode = road.locality != null ? localityMunicipalityCodes.get(road.locality) : null;
+            if (municipalityCode == null || road.code == 0) {
+                continue;
+            }
+            long key = pack(municipalityCode, road.code);
+            int index = slot(key);
+            while (this.roads[index] != null && this.keys[index] != key) {
+                index = (index + 1) & this.mask;
+            }
+            if (this.roads[index] == null) {
+                this.keys[index] = key;
+                this.roads[index] = road;
+                size++;
+            }
+        }
+        this.size = size;
+    }
+
+    /**
+     * @return The road with the given codes, or null if there is none
+     */
+    public AddressHierarchy.Road get(int municipalityCode, int roadCode) {
+        long key = pack(municipalityCode, roadCode);
+        int index = slot(key);
+        AddressHierarchy.Road road;
+        while ((road = this.roads[index]) != null) {
+            if (this.keys[index] == key) {
+                return road;
+            }
+            index = (index + 1) & this.mask;
+        }
+        return null;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Calls the consumer with the packed codes and the road of every indexed road
+     */
+    public void forEach(BiConsumer<Long, AddressHierarchy.Road> consumer) {
+        for (int i = 0; i < this.roads.length; i++) {
+            if (this.roads[i] != null) {
+                consumer.accept(this.keys[i], this.roads[i]);
+            }
+        }
+    }
+
+    static long pack(int municipalityCode, int roadCode) {
+        return ((long) municipalityCode << 32) | (roadCode & 0xFFFFFFFFL);
+    }
+
+    private int slot(long key) {
+        // Murmur3 finalizer, to spread the packed codes over the table
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key & this.mask;
+    }
+}
@@ -1,5 +1,18 @@
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dk.magenta.datafordeler.adresseservice.AccessLog;
+import dk.magenta.datafordeler.adresseservice.AddressHierarchy;
 import dk.magenta.datafordeler.adresseservice.AdresseService;
+import dk.magenta.datafordeler.adresseservice.AdresseWarmup;
+import dk.magenta.datafordeler.adresseservice.BatchedLookup;
+import dk.magenta.datafordeler.adresseservice.ConnectionPools;
+import dk.magenta.datafordeler.adresseservice.DataVersion;
+import dk.magenta.datafordeler.adresseservice.DataVersionChangedEvent;
+import dk.magenta.datafordeler.adresseservice.FragmentCache;
+import dk.magenta.datafordeler.adresseservice.MicroBatcher;
+import dk.magenta.datafordeler.adresseservice.NegativeCache;
+import dk.magenta.datafordeler.adresseservice.ReadReplica;
 import dk.magenta.datafordeler.core.Application;
 import dk.magenta.datafordeler.core.database.Entity;
 import dk.magenta.datafordeler.core.database.QueryManager;
@@ -23,8 +36,13 @@ import dk.magenta.datafordeler.gladdrreg.data.municipality.MunicipalityRegistrat
 import dk.magenta.datafordeler.gladdrreg.data.road.RoadEntity;
 import dk.magenta.datafordeler.gladdrreg.data.road.RoadEntityManager;
 import dk.magenta.datafordeler.gladdrreg.data.road.RoadRegistration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.logging.log4j.Logger;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
+import org.hibernate.stat.Statistics;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -33,15 +51,43 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.ApplicationContext;
 import org.springframework.http.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @ContextConfiguration(classes = Application.class)
@@ -63,6 +109,24 @@ public class AdresseServiceTest {
     @Autowired
     ObjectMapper objectMapper;
 
+    @Autowired
+    NegativeCache negativeCache;
+
+    @Autowired
+    DataVersion dataVersion;
+
+    @Autowired
+    ReadReplica readReplica;
+
+    @Autowired
+    FragmentCache fragmentCache;
+
+    @Autowired
+    AdresseWarmup adresseWarmup;
+
+    @Autowired
+    ApplicationContext applicationContext;
+
 
     @Test
     public void testLocalityService() throws IOException, DataFordelerException {
@@ -131,6 +195,80 @@ public class AdresseServiceTest {
         );
     }
 
+    @Test
+    public void testRoadCodeService() throws IOException {
+        HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/adresse/vej/?vejkode=1",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+
+        response = restTemplate.exchange(
+                "/adresse/vej/?kommune=955&vejkode=invalid",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+
+        response = restTemplate.exchange(
+                "/adresse/vej/?kommune=955&vejkode=2",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertTrue(
+                "Non-matching response "+response.getBody(),
+                objectMapper.readTree("[]").equals(
+                        objectMapper.readTree(response.getBody())
+                )
+        );
+
+        response = restTemplate.exchange(
+                "/adresse/vej/?kommune=955&vejkode=1",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertTrue(
+                "Non-matching response "+response.getBody(),
+                objectMapper.readTree("[{\"uuid\":\"e4dc6c09-baae-40b1-8696-57771b2f7a81\",\"vejkode\":1,\"navn\":\"Aadarujuup Aqquserna\",\"forkortet_navn\":\"Aadarujuup Aqq.\",\"andet_navn\":null,\"cpr_navn\":null}]").equals(
+                        objectMapper.readTree(response.getBody())
+                )
+        );
+    }
+
+    @Test
+    public void testRoadCodeAfterImport() throws IOException, DataFordelerException {
+        HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/adresse/vej/?kommune=955&vejkode=8",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals(objectMapper.readTree("[]"), objectMapper.readTree(response.getBody()));
+
+        // Without coherence events, the periodic revalidation notices the import
+        saveRoadRegistration("e4dc6c09-baae-40b1-8696-57771b2f7a88", 8, "Qinngut");
+        ReflectionTestUtils.invokeMethod(adresseService, "revalidate");
+
+        response = restTemplate.exchange(
+                "/adresse/vej/?kommune=955&vejkode=8",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals("e4dc6c09-baae-40b1-8696-57771b2f7a88", objectMapper.readTree(response.getBody()).get(0).get("uuid").asText());
+    }
+
     @Test
     public void testBuildingService() throws IOException {
         HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
@@ -158,6 +296,139 @@ public class AdresseServiceTest {
     }
 
 
+    @Test
+    public void testBuildingRows() throws IOException, DataFordelerException {
+        ObjectNode registrations = objectMapper.createObjectNode();
+        // Another apartment in house 05, and two in house 11
+        addAddressRegistration(registrations, "6921fbb1-ddd7-4c7c-bb98-bbf63ace6b01", "05", "3", null, null);
+        addAddressRegistration(registrations, "6921fbb1-ddd7-4c7c-bb98-bbf63ace6b02", "11", "1", null, null);
+        addAddressRegistration(registrations, "6921fbb1-ddd7-4c7c-bb98-bbf63ace6b03", "11", "2", null, null);
+        // Effect ended, and registration ended
+        addAddressRegistration(registrations, "6921fbb1-ddd7-4c7c-bb98-bbf63ace6b04", "07", "1", "2018-01-01T00:00:00Z", null);
+        addAddressRegistration(registrations, "6921fbb1-ddd7-4c7c-bb98-bbf63ace6b05", "09", "1", null, "2018-01-01T00:00:00Z");
+        // Two addresses without a house number
+        addAddressRegistration(registrations, "6921fbb1-ddd7-4c7c-bb98-bbf63ace6b06", null, "1", null, null);
+        addAddressRegistration(registrations, "6921fbb1-ddd7-4c7c-bb98-bbf63ace6b07", null, "2", null, null);
+
+        saveAddressRegistrations(registrations);
+
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/adresse/hus/?vej=e4dc6c09-baae-40b1-8696-57771b2f7a81",
+                HttpMethod.GET,
+                new HttpEntity<String>("", new HttpHeaders()),
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        // One building per house number, in the order the first addresses were stored,
+        // and one per address without a house number
+        Assert.assertTrue(
+                "Non-matching response "+response.getBody(),
+                objectMapper.readTree("[" +
+                        "{\"husnummer\":\"05\",\"b_nummer\":\"293\",\"b_kaldenavn\":\"testhus\"}," +
+                        "{\"husnummer\":\"11\",\"b_nummer\":null,\"b_kaldenavn\":null}," +
+                        "{\"husnummer\":null,\"b_nummer\":null,\"b_kaldenavn\":null}," +
+                        "{\"husnummer\":null,\"b_nummer\":null,\"b_kaldenavn\":null}" +
+                        "]").equals(
+                        objectMapper.readTree(response.getBody())
+                )
+        );
+    }
+
+    /**
+     * Imports address registrations, as made by addAddressRegistration
+     */
+    private void saveAddressRegistrations(ObjectNode registrations) throws IOException, DataFordelerException {
+        Session session = sessionManager.getSessionFactory().openSession();
+        try {
+            Transaction transaction = session.beginTransaction();
+            AddressEntityManager addressEntityManager = (AddressEntityManager) gladdrregPlugin.getRegisterManager().getEntityManager(AddressEntity.schema);
+            for (Registration registration : addressEntityManager.parseData(
+                    new ByteArrayInputStream(objectMapper.writeValueAsBytes(registrations)), new ImportMetadata()
+            )) {
+                AddressRegistration addressRegistration = (AddressRegistration) registration;
+                QueryManager.saveRegistration(session, addressRegistration.getEntity(), addressRegistration);
+                createdEntities.add(addressRegistration.getEntity());
+            }
+            transaction.commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Adds a registration of an address on the test road, in the import format, to a set of registrations
+     */
+    private void addAddressRegistration(ObjectNode registrations, String uuid, String houseNumber, String floor, String effectTo, String registrationTo) {
+        ObjectNode registration = registrations.putObject(uuid.replace("-", ""));
+        registration.putObject("entity")
+                .put("uuid", uuid)
+                .put("domaene", "https://data.gl/gladdreg/address/1/rest/");
+        ObjectNode effect = registration.putArray("virkninger").addObject();
+        effect.put("virkningFra", "2017-09-19T10:50:30.451Z");
+        effect.put("virkningTil", effectTo);
+        ObjectNode data = effect.putArray("data").addObject();
+        data.put("house_number", houseNumber);
+        data.put("floor", floor);
+        data.put("active", true);
+        data.putObject("road")
+                .put("uuid", "e4dc6c09-baae-40b1-8696-57771b2f7a81")
+                .put("domaene", "https://data.gl/gladdreg/road/1/rest/");
+        data.putObject("municipality")
+                .put("uuid", "f792151b-f509-4173-aa5d-2f237cca1784")
+                .put("domaene", "https://data.gl/gladdreg/municipality/1/rest/");
+        registration.put("registreringFra", "2017-09-19T10:50:30.451Z");
+        registration.put("checksum", uuid.replace("-", ""));
+        registration.put("registreringTil", registrationTo);
+    }
+
+
+    /**
+     * Imports a registration of a road in the test locality, in the import format
+     */
+    private void saveRoadRegistration(String uuid, int code, String name) throws IOException, DataFordelerException {
+        ObjectNode registrations = objectMapper.createObjectNode();
+        ObjectNode registration = registrations.putObject(uuid.replace("-", ""));
+        registration.putObject("entity")
+                .put("uuid", uuid)
+                .put("domaene", "https://data.gl/gladdreg/road/1/rest/");
+        ObjectNode effect = registration.putArray("virkninger").addObject();
+        effect.put("virkningFra", "2017-09-19T10:45:05.591Z");
+        effect.putNull("virkningTil");
+        ObjectNode data = effect.putArray("data").addObject();
+        data.put("code", code);
+        data.put("name", name);
+        data.put("shortname", name);
+        data.putNull("alternate_name");
+        data.putNull("cpr_name");
+        data.put("active", true);
+        data.putObject("location")
+                .put("uuid", "4d9cd2a0-89f1-4acc-a259-4fd139006d87")
+                .put("domaene", "https://data.gl/gladdreg/locality/1/rest/");
+        data.putObject("municipality")
+                .put("uuid", "f792151b-f509-4173-aa5d-2f237cca1784")
+                .put("domaene", "https://data.gl/gladdreg/municipality/1/rest/");
+        registration.put("registreringFra", "2017-09-19T10:45:05.591Z");
+        registration.put("checksum", uuid.replace("-", ""));
+        registration.putNull("registreringTil");
+
+        Session session = sessionManager.getSessionFactory().openSession();
+        try {
+            Transaction transaction = session.beginTransaction();
+            RoadEntityManager roadEntityManager = (RoadEntityManager) gladdrregPlugin.getRegisterManager().getEntityManager(RoadEntity.schema);
+            for (Registration parsed : roadEntityManager.parseData(
+                    new ByteArrayInputStream(objectMapper.writeValueAsBytes(registrations)), new ImportMetadata()
+            )) {
+                RoadRegistration roadRegistration = (RoadRegistration) parsed;
+                QueryManager.saveRegistration(session, roadRegistration.getEntity(), roadRegistration);
+                createdEntities.add(roadRegistration.getEntity());
+            }
+            transaction.commit();
+        } finally {
+            session.close();
+        }
+    }
+
+
     //@Test
     //Disabling this unittest during cleanup in unittests, the project has not been touched for a long time, and the test is failing
     public void testAddressService() throws IOException {
@@ -336,6 +607,943 @@ public class AdresseServiceTest {
     }
 
 
+    @Test
+    public void testFieldSelection() throws IOException {
+        HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/adresse/adresseoplysninger/?adresse=6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a&felter=vejkode,kommunekode",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals(
+                objectMapper.readTree("{\"vejkode\":1,\"kommunekode\":955}"),
+                objectMapper.readTree(response.getBody())
+        );
+
+        response = restTemplate.exchange(
+                "/adresse/adresseoplysninger/?adresse=6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a&felter=b_nummer",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals(
+                objectMapper.readTree("{\"b_nummer\":\"293\"}"),
+                objectMapper.readTree(response.getBody())
+        );
+
+        response = restTemplate.exchange(
+                "/adresse/hus/?vej=e4dc6c09-baae-40b1-8696-57771b2f7a81&felter=husnummer",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals(
+                objectMapper.readTree("[{\"husnummer\":\"05\"}]"),
+                objectMapper.readTree(response.getBody())
+        );
+    }
+
+    @Test
+    public void testMultipleParents() throws IOException {
+        HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/adresse/vej/?lokalitet=4d9cd2a0-89f1-4acc-a259-4fd139006d87,01234567-89ab-cdef-0123-456789abcdef",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        JsonNode roads = objectMapper.readTree(response.getBody());
+        Assert.assertEquals(2, roads.size());
+        Assert.assertEquals(1, roads.get("4d9cd2a0-89f1-4acc-a259-4fd139006d87").size());
+        Assert.assertEquals("e4dc6c09-baae-40b1-8696-57771b2f7a81", roads.get("4d9cd2a0-89f1-4acc-a259-4fd139006d87").get(0).get("uuid").asText());
+        Assert.assertEquals(0, roads.get("01234567-89ab-cdef-0123-456789abcdef").size());
+
+        response = restTemplate.exchange(
+                "/adresse/hus/?vej=e4dc6c09-baae-40b1-8696-57771b2f7a81&vej=01234567-89ab-cdef-0123-456789abcdef",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals(
+                objectMapper.readTree("{\"e4dc6c09-baae-40b1-8696-57771b2f7a81\":[{\"husnummer\":\"05\",\"b_nummer\":\"293\",\"b_kaldenavn\":\"testhus\"}],\"01234567-89ab-cdef-0123-456789abcdef\":[]}"),
+                objectMapper.readTree(response.getBody())
+        );
+    }
+
+    @Test
+    public void testStatementCount() throws IOException, DataFordelerException {
+        String[] urls = new String[] {
+                "/adresse/adresse/?vej=e4dc6c09-baae-40b1-8696-57771b2f7a81",
+                "/adresse/hus/?vej=e4dc6c09-baae-40b1-8696-57771b2f7a81",
+                "/adresse/hierarki/?kommune=955"
+        };
+        // The first round may load state that later requests reuse
+        this.countStatements(urls);
+        long[] before = this.countStatements(urls);
+
+        // Many more addresses on the same road
+        ObjectNode registrations = objectMapper.createObjectNode();
+        for (int i = 0; i < 20; i++) {
+            addAddressRegistration(registrations, String.format("6921fbb1-ddd7-4c7c-bb98-bbf63ace%04d", i), Integer.toString(100 + i), "1", null, null);
+        }
+        saveAddressRegistrations(registrations);
+
+        // Lazy collections are batch fetched, so the statement count does not grow with the number of entities
+        long[] after = this.countStatements(urls);
+        for (int i = 0; i < urls.length; i++) {
+            Assert.assertEquals(urls[i], before[i], after[i]);
+        }
+    }
+
+    /**
+     * Requests each url, and counts the statements prepared for it
+     */
+    private long[] countStatements(String[] urls) {
+        Statistics statistics = sessionManager.getSessionFactory().getStatistics();
+        boolean statisticsEnabled = statistics.isStatisticsEnabled();
+        statistics.setStatisticsEnabled(true);
+        try {
+            HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+            long[] counts = new long[urls.length];
+            for (int i = 0; i < urls.length; i++) {
+                statistics.clear();
+                ResponseEntity<String> response = restTemplate.exchange(urls[i], HttpMethod.GET, httpEntity, String.class);
+                Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+                counts[i] = statistics.getPrepareStatementCount();
+            }
+            return counts;
+        } finally {
+            statistics.setStatisticsEnabled(statisticsEnabled);
+        }
+    }
+
+    @Test
+    public void testBatchedLookupChunks() {
+        Assert.assertEquals(1, BatchedLookup.bucketSize(1));
+        Assert.assertEquals(4, BatchedLookup.bucketSize(2));
+        Assert.assertEquals(4, BatchedLookup.bucketSize(4));
+        Assert.assertEquals(16, BatchedLookup.bucketSize(5));
+        Assert.assertEquals(256, BatchedLookup.bucketSize(256));
+        Assert.assertEquals(256, BatchedLookup.bucketSize(1000));
+
+        Assert.assertTrue(BatchedLookup.chunk(Collections.emptyList()).isEmpty());
+
+        // Padded with the last key up to the bucket size
+        List<List<Integer>> chunks = BatchedLookup.chunk(Arrays.asList(1, 2, 3));
+        Assert.assertEquals(1, chunks.size());
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 3), chunks.get(0));
+
+        // Split into full chunks, with only the last one padded
+        ArrayList<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            keys.add(i);
+        }
+        chunks = BatchedLookup.chunk(keys);
+        Assert.assertEquals(2, chunks.size());
+        Assert.assertEquals(keys.subList(0, 256), chunks.get(0));
+        Assert.assertEquals(64, chunks.get(1).size());
+        Assert.assertEquals(keys.subList(256, 300), chunks.get(1).subList(0, 44));
+        Assert.assertEquals(Collections.nCopies(20, 299), chunks.get(1).subList(44, 64));
+    }
+
+    @Test
+    public void testHierarchyService() throws IOException {
+        HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/adresse/hierarki/",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+
+        response = restTemplate.exchange(
+                "/adresse/hierarki/?kommune=1234",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+
+        response = restTemplate.exchange(
+                "/adresse/hierarki/?kommune=955",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertTrue(
+                "Non-matching response "+response.getBody(),
+                objectMapper.readTree("[{\"uuid\":\"4d9cd2a0-89f1-4acc-a259-4fd139006d87\",\"navn\":\"Paamiut\",\"forkortelse\":\"PAA\",\"veje\":[" +
+                        "{\"uuid\":\"e4dc6c09-baae-40b1-8696-57771b2f7a81\",\"vejkode\":1,\"navn\":\"Aadarujuup Aqquserna\",\"forkortet_navn\":\"Aadarujuup Aqq.\",\"andet_navn\":null,\"cpr_navn\":null,\"huse\":[" +
+                        "{\"husnummer\":\"05\",\"b_nummer\":\"293\",\"b_kaldenavn\":\"testhus\"}" +
+                        "]}" +
+                        "]}]").equals(
+                        objectMapper.readTree(response.getBody())
+                )
+        );
+
+        response = restTemplate.exchange(
+                "/adresse/hierarki/?kommune=955&felter=navn",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals(
+                objectMapper.readTree("[{\"navn\":\"Paamiut\"}]"),
+                objectMapper.readTree(response.getBody())
+        );
+
+        response = restTemplate.exchange(
+                "/adresse/hierarki/?kommune=955&felter=navn,husnummer",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals(
+                objectMapper.readTree("[{\"navn\":\"Paamiut\",\"veje\":[" +
+                        "{\"navn\":\"Aadarujuup Aqquserna\",\"huse\":[{\"husnummer\":\"05\"}]}" +
+                        "]}]"),
+                objectMapper.readTree(response.getBody())
+        );
+
+        response = restTemplate.exchange(
+                "/adresse/hierarki/?kommune=955&felter=navn,veje",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals(
+                objectMapper.readTree("[{\"navn\":\"Paamiut\",\"veje\":[{\"navn\":\"Aadarujuup Aqquserna\"}]}]"),
+                objectMapper.readTree(response.getBody())
+        );
+    }
+
+    @Test
+    public void testMatchService() throws IOException {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/adresse/match",
+                HttpMethod.POST,
+                new HttpEntity<String>("{}", headers),
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+
+        response = restTemplate.exchange(
+                "/adresse/match",
+                HttpMethod.POST,
+                new HttpEntity<String>("[" +
+                        "{\"kommunekode\":955,\"vejkode\":1,\"husnr\":\"5\",\"etage\":\"1\",\"doer\":null}," +
+                        "{\"kommunekode\":\"955\",\"vejkode\":\"0001\",\"husnr\":\"05\",\"etage\":\"2\"}," +
+                        "{\"kommunekode\":955,\"vejkode\":1,\"husnr\":\"6\",\"etage\":\"1\"}," +
+                        "{\"kommunekode\":1234,\"vejkode\":1,\"husnr\":\"5\",\"etage\":\"1\"}," +
+                        "{\"kommunekode\":955,\"vejkode\":1,\"husnr\":\"5\"}" +
+                        "]", headers),
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        JsonNode results = objectMapper.readTree(response.getBody());
+        Assert.assertEquals("Non-matching response "+response.getBody(), 5, results.size());
+        Assert.assertTrue(
+                "Non-matching response "+response.getBody(),
+                objectMapper.readTree("[" +
+                        "{\"status\":\"fundet\",\"uuid\":\"6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a\"}," +
+                        "{\"status\":\"fundet\",\"uuid\":\"6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3b\"}," +
+                        "{\"status\":\"ikke_fundet\"}," +
+                        "{\"status\":\"ikke_fundet\"}" +
+                        "]").equals(
+                        objectMapper.createArrayNode().add(results.get(0)).add(results.get(1)).add(results.get(2)).add(results.get(3))
+                )
+        );
+
+        // Without floor and door, the house number matches both apartments
+        JsonNode ambiguous = results.get(4);
+        Assert.assertEquals("tvetydig", ambiguous.get("status").asText());
+        HashSet<String> uuids = new HashSet<>();
+        for (JsonNode uuid : ambiguous.get("uuider")) {
+            uuids.add(uuid.asText());
+        }
+        Assert.assertEquals(
+                new HashSet<>(Arrays.asList("6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a", "6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3b")),
+                uuids
+        );
+    }
+
+    @Test
+    public void testMatchAfterImport() throws IOException, DataFordelerException {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        HttpEntity<String> httpEntity = new HttpEntity<String>("[{\"kommunekode\":955,\"vejkode\":1,\"husnr\":\"13\",\"etage\":\"1\"}]", headers);
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/adresse/match",
+                HttpMethod.POST,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals(objectMapper.readTree("[{\"status\":\"ikke_fundet\"}]"), objectMapper.readTree(response.getBody()));
+
+        ObjectNode registrations = objectMapper.createObjectNode();
+        addAddressRegistration(registrations, "6921fbb1-ddd7-4c7c-bb98-bbf63ace6c31", "13", "1", null, null);
+        saveAddressRegistrations(registrations);
+        ReflectionTestUtils.invokeMethod(adresseService, "revalidate");
+
+        response = restTemplate.exchange(
+                "/adresse/match",
+                HttpMethod.POST,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals(
+                objectMapper.readTree("[{\"status\":\"fundet\",\"uuid\":\"6921fbb1-ddd7-4c7c-bb98-bbf63ace6c31\"}]"),
+                objectMapper.readTree(response.getBody())
+        );
+    }
+
+    /**
+     * Creates an access log whose records are captured in a list instead of written to the log
+     */
+    private AccessLog createAccessLog(double sampleRate, long slowThresholdMillis, List<String> written) {
+        AccessLog accessLog = new AccessLog();
+        ReflectionTestUtils.setField(accessLog, "objectMapper", objectMapper);
+        ReflectionTestUtils.setField(accessLog, "enabled", true);
+        ReflectionTestUtils.setField(accessLog, "sampleRate", sampleRate);
+        ReflectionTestUtils.setField(accessLog, "slowThresholdMillis", slowThresholdMillis);
+        ReflectionTestUtils.setField(accessLog, "bufferSize", 1024);
+        ReflectionTestUtils.setField(accessLog, "accessLog", Proxy.newProxyInstance(
+                Logger.class.getClassLoader(), new Class[] {Logger.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("info") && args != null && args.length == 1) {
+                        written.add((String) args[0]);
+                    }
+                    return null;
+                }
+        ));
+        return accessLog;
+    }
+
+    private static void completeRequest(AccessLog accessLog, String uri, int status, Exception exception) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.setStatus(status);
+        accessLog.preHandle(request, response, null);
+        accessLog.afterCompletion(request, response, null, exception);
+    }
+
+    @Test
+    public void testFlightRecording() throws Exception {
+        Path file = Files.createTempFile("adresseservice", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("dk.magenta.datafordeler.adresseservice.Endpoint").withThreshold(Duration.ZERO);
+            recording.enable("dk.magenta.datafordeler.adresseservice.Phase").withThreshold(Duration.ZERO);
+            recording.start();
+            ResponseEntity<String> response = restTemplate.exchange(
+                    "/adresse/hus/?vej=e4dc6c09-baae-40b1-8696-57771b2f7a81",
+                    HttpMethod.GET,
+                    new HttpEntity<String>("", new HttpHeaders()),
+                    String.class
+            );
+            Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+
+            // The endpoint event is committed after the response has been written, so it may arrive a little later
+            RecordedEvent endpointEvent = null;
+            HashSet<String> phases = new HashSet<>();
+            for (int attempt = 0; attempt < 50 && endpointEvent == null; attempt++) {
+                Thread.sleep(100);
+                recording.dump(file);
+                phases.clear();
+                for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                    String name = event.getEventType().getName();
+                    if (name.equals("dk.magenta.datafordeler.adresseservice.Endpoint") && event.getString("endpoint").startsWith("/adresse/hus")) {
+                        endpointEvent = event;
+                    } else if (name.equals("dk.magenta.datafordeler.adresseservice.Phase")) {
+                        phases.add(event.getString("phase"));
+                        if (event.getString("phase").equals("query")) {
+                            Assert.assertEquals(1, event.getInt("count"));
+                        }
+                    }
+                }
+            }
+            Assert.assertNotNull(endpointEvent);
+            Assert.assertEquals(200, endpointEvent.getInt("status"));
+            Assert.assertEquals(1, endpointEvent.getInt("count"));
+            Assert.assertEquals("vej=e4dc6c09-baae-40b1-8696-57771b2f7a81", endpointEvent.getString("parameters"));
+            Assert.assertTrue("Phases recorded: " + phases, phases.containsAll(Arrays.asList("parameters", "user", "serialization")));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testAccessLogSampling() throws Exception {
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+        AccessLog accessLog = createAccessLog(0.0, 60000, written);
+        accessLog.start();
+        try {
+            // Successes are sampled away, failures are always logged
+            completeRequest(accessLog, "/adresse/vej", 200, null);
+            completeRequest(accessLog, "/adresse/lokalitet", 404, null);
+            completeRequest(accessLog, "/adresse/hus", 200, new RuntimeException());
+        } finally {
+            accessLog.stop();
+        }
+        Assert.assertEquals(2, written.size());
+        Assert.assertEquals(404, objectMapper.readTree(written.get(0)).get("status").asInt());
+        Assert.assertEquals("/adresse/lokalitet", objectMapper.readTree(written.get(0)).get("endpoint").asText());
+        Assert.assertEquals(500, objectMapper.readTree(written.get(1)).get("status").asInt());
+
+        // Slow requests are always logged
+        written.clear();
+        accessLog = createAccessLog(0.0, 0, written);
+        accessLog.start();
+        try {
+            completeRequest(accessLog, "/adresse/vej", 200, null);
+        } finally {
+            accessLog.stop();
+        }
+        Assert.assertEquals(1, written.size());
+        Assert.assertEquals(200, objectMapper.readTree(written.get(0)).get("status").asInt());
+    }
+
+    @Test
+    public void testAccessLogDrain() throws Exception {
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+        AccessLog accessLog = createAccessLog(1.0, 60000, written);
+        accessLog.start();
+        int count = 500;
+        try {
+            for (int i = 0; i < count; i++) {
+                completeRequest(accessLog, "/adresse/vej/" + i, 200, null);
+            }
+        } finally {
+            // Stopping writes out everything still in the buffer
+            accessLog.stop();
+        }
+        Assert.assertEquals(count, written.size());
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals("/adresse/vej/" + i, objectMapper.readTree(written.get(i)).get("endpoint").asText());
+        }
+    }
+
+    @Test
+    public void testUsage() throws IOException {
+        HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/adresse/lokalitet/?kommune=955",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        response = restTemplate.exchange(
+                "/adresse/forbrug",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        JsonNode usage = objectMapper.readTree(response.getBody()).get("lokalitet");
+        Assert.assertNotNull("Non-matching response "+response.getBody(), usage);
+        Assert.assertTrue(usage.get("godkendt").asLong() >= 1);
+        Assert.assertEquals(0, usage.get("afvist").asLong());
+    }
+
+    @Test
+    public void testConnectionPools() throws IOException {
+        HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/adresse/forbindelser",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        // Each SessionFactory has a primary pool of its own
+        JsonNode pools = objectMapper.readTree(response.getBody());
+        long acquired = 0;
+        HashSet<String> primaryPools = new HashSet<>();
+        Iterator<String> poolNames = pools.fieldNames();
+        while (poolNames.hasNext()) {
+            String poolName = poolNames.next();
+            if (poolName.startsWith("adresseservice-primary-")) {
+                primaryPools.add(poolName);
+                Assert.assertTrue(pools.get(poolName).get("i_alt").asInt() > 0);
+                acquired += pools.get(poolName).get("hentet").asLong();
+            }
+        }
+        Assert.assertFalse("Non-matching response "+response.getBody(), primaryPools.isEmpty());
+        Assert.assertTrue(acquired > 0);
+    }
+
+    @Test
+    public void testReadiness() throws IOException {
+        HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/adresse/klar",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertTrue(
+                "Non-matching response "+response.getBody(),
+                objectMapper.readTree("{\"klar\":true}").equals(
+                        objectMapper.readTree(response.getBody())
+                )
+        );
+    }
+
+    @Test
+    public void testReadinessDuringWarmup() throws IOException {
+        HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+        // Hold the warmup back until the not-ready state has been checked
+        ArrayList<Runnable> pending = new ArrayList<>();
+        adresseWarmup.startWarmup(pending::add);
+        try {
+            ResponseEntity<String> response = restTemplate.exchange(
+                    "/adresse/klar",
+                    HttpMethod.GET,
+                    httpEntity,
+                    String.class
+            );
+            Assert.assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+            Assert.assertEquals(objectMapper.readTree("{\"klar\":false}"), objectMapper.readTree(response.getBody()));
+        } finally {
+            for (Runnable warmup : pending) {
+                warmup.run();
+            }
+        }
+        Assert.assertEquals(1, pending.size());
+
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/adresse/klar",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals(objectMapper.readTree("{\"klar\":true}"), objectMapper.readTree(response.getBody()));
+    }
+
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        AddressHierarchy hierarchy;
+        Session session = sessionManager.getSessionFactory().openSession();
+        try {
+            hierarchy = AddressHierarchy.load(session, 42);
+        } finally {
+            session.close();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hierarchy.write(new DataOutputStream(bytes));
+        AddressHierarchy copy = AddressHierarchy.read(ByteBuffer.wrap(bytes.toByteArray()));
+
+        UUID municipality = UUID.fromString("f792151b-f509-4173-aa5d-2f237cca1784");
+        UUID locality = UUID.fromString("4d9cd2a0-89f1-4acc-a259-4fd139006d87");
+        UUID road = UUID.fromString("e4dc6c09-baae-40b1-8696-57771b2f7a81");
+        Assert.assertEquals(42, copy.getDataVersion());
+        Assert.assertEquals(municipality, copy.getMunicipalities().get(955));
+        Assert.assertEquals(1, copy.getLocalities(municipality).size());
+        Assert.assertEquals(1, copy.getRoads(locality).size());
+        Assert.assertEquals(2, copy.getAddresses(road).size());
+    }
+
+
+    @Test
+    public void testNegativeCache() throws IOException {
+        UUID address = UUID.fromString("6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a");
+        UUID unknown = UUID.fromString("01234567-89ab-cdef-0123-456789abcdef");
+        Session session = sessionManager.getSessionFactory().openSession();
+        try {
+            negativeCache.rebuild(session);
+        } finally {
+            session.close();
+        }
+        try {
+            Assert.assertFalse(negativeCache.isKnownMissing(NegativeCache.Kind.ADDRESS, address));
+            Assert.assertFalse(negativeCache.isKnownMissing(NegativeCache.Kind.LOCALITY, UUID.fromString("4d9cd2a0-89f1-4acc-a259-4fd139006d87")));
+            Assert.assertFalse(negativeCache.isKnownMissing(NegativeCache.Kind.ROAD, UUID.fromString("e4dc6c09-baae-40b1-8696-57771b2f7a81")));
+            Assert.assertFalse(negativeCache.isKnownMissing(NegativeCache.Kind.BNUMBER, "293"));
+
+            HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+            ResponseEntity<String> response = restTemplate.exchange(
+                    "/adresse/adresseoplysninger/?adresse=" + unknown,
+                    HttpMethod.GET,
+                    httpEntity,
+                    String.class
+            );
+            Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+            Assert.assertEquals(objectMapper.readTree("{}"), objectMapper.readTree(response.getBody()));
+            Assert.assertTrue(negativeCache.isKnownMissing(NegativeCache.Kind.ADDRESS, unknown));
+
+            response = restTemplate.exchange(
+                    "/adresse/adresseoplysninger/?adresse=" + address,
+                    HttpMethod.GET,
+                    httpEntity,
+                    String.class
+            );
+            Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+            Assert.assertEquals(address.toString(), objectMapper.readTree(response.getBody()).get("uuid").asText());
+        } finally {
+            negativeCache.clear();
+        }
+    }
+
+
+    @Test
+    public void testDataVersionCoherence() throws IOException, DataFordelerException {
+        // A second node on the same database, which only observes the shared data version
+        ArrayList<Object> events = new ArrayList<>();
+        DataVersion otherNode = new DataVersion(sessionManager, events::add);
+        // Record the fingerprint of the current data
+        ReflectionTestUtils.invokeMethod(dataVersion, "detectImport");
+        Assert.assertFalse(ReflectionTestUtils.<Boolean>invokeMethod(otherNode, "detectImport"));
+        Assert.assertFalse(otherNode.poll());
+
+        long version = dataVersion.read();
+        ObjectNode registrations = objectMapper.createObjectNode();
+        addAddressRegistration(registrations, "6921fbb1-ddd7-4c7c-bb98-bbf63ace6c01", "13", "1", null, null);
+        saveAddressRegistrations(registrations);
+
+        // Both nodes notice the import, but only the first one increases the version
+        Assert.assertTrue(ReflectionTestUtils.<Boolean>invokeMethod(dataVersion, "detectImport"));
+        Assert.assertFalse(ReflectionTestUtils.<Boolean>invokeMethod(otherNode, "detectImport"));
+        Assert.assertEquals(version + 1, otherNode.read());
+        Assert.assertTrue(otherNode.poll());
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(version + 1, ((DataVersionChangedEvent) events.get(0)).getVersion());
+        Assert.assertFalse(otherNode.poll());
+    }
+
+    @Test
+    public void testDataVersionRefreshesOtherNode() throws IOException, DataFordelerException {
+        HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+        // A second node on the same database, publishing to the services of this one
+        DataVersion otherNode = new DataVersion(sessionManager, applicationContext);
+        ReflectionTestUtils.invokeMethod(dataVersion, "detectImport");
+        otherNode.poll();
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/adresse/vej/?kommune=955&vejkode=7",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals(objectMapper.readTree("[]"), objectMapper.readTree(response.getBody()));
+
+        // Imported by the first node, and only seen by this one through the shared data version
+        saveRoadRegistration("e4dc6c09-baae-40b1-8696-57771b2f7a87", 7, "Imaneq");
+        Assert.assertTrue(ReflectionTestUtils.<Boolean>invokeMethod(dataVersion, "detectImport"));
+        Assert.assertTrue(otherNode.poll());
+
+        response = restTemplate.exchange(
+                "/adresse/vej/?kommune=955&vejkode=7",
+                HttpMethod.GET,
+                httpEntity,
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals("e4dc6c09-baae-40b1-8696-57771b2f7a87", objectMapper.readTree(response.getBody()).get(0).get("uuid").asText());
+    }
+
+
+    /**
+     * Populates a replica database with a copy of the primary database
+     */
+    private void copyToReplica(String replicaUrl) throws SQLException {
+        Session session = sessionManager.getSessionFactory().openSession();
+        List<String> statements;
+        try {
+            statements = session.doReturningWork(connection -> {
+                List<String> script = new ArrayList<>();
+                try (Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("SCRIPT")) {
+                    while (resultSet.next()) {
+                        script.add(resultSet.getString(1));
+                    }
+                }
+                return script;
+            });
+        } finally {
+            session.close();
+        }
+        try (Connection replica = DriverManager.getConnection(replicaUrl, "test", "test"); Statement statement = replica.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    @Test
+    public void testReplicaMissNotCached() throws IOException, SQLException, DataFordelerException {
+        String replicaUrl = "jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1";
+        copyToReplica(replicaUrl);
+        // Imported on the primary, but not yet on the replica
+        UUID address = UUID.fromString("6921fbb1-ddd7-4c7c-bb98-bbf63ace6c41");
+        ObjectNode registrations = objectMapper.createObjectNode();
+        addAddressRegistration(registrations, address.toString(), "15", "1", null, null);
+        saveAddressRegistrations(registrations);
+        Session session = sessionManager.getSessionFactory().openSession();
+        try {
+            negativeCache.rebuild(session);
+        } finally {
+            session.close();
+        }
+
+        HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+        try {
+            readReplica.connect(replicaUrl, "test", "test");
+            Assert.assertTrue(readReplica.isUsingReplica());
+            ResponseEntity<String> response = restTemplate.exchange(
+                    "/adresse/adresseoplysninger/?adresse=" + address,
+                    HttpMethod.GET,
+                    httpEntity,
+                    String.class
+            );
+            Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+            Assert.assertEquals(objectMapper.readTree("{}"), objectMapper.readTree(response.getBody()));
+            // The replica lag is not remembered as a miss
+            Assert.assertFalse(negativeCache.isKnownMissing(NegativeCache.Kind.ADDRESS, address));
+
+            readReplica.disconnect();
+            response = restTemplate.exchange(
+                    "/adresse/adresseoplysninger/?adresse=" + address,
+                    HttpMethod.GET,
+                    httpEntity,
+                    String.class
+            );
+            Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+            Assert.assertEquals(address.toString(), objectMapper.readTree(response.getBody()).get("uuid").asText());
+        } finally {
+            readReplica.disconnect();
+            negativeCache.clear();
+        }
+    }
+
+    @Test
+    public void testReadReplica() throws IOException, SQLException {
+        String replicaUrl = "jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1";
+        copyToReplica(replicaUrl);
+
+        HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+        try {
+            readReplica.connect(replicaUrl, "test", "test");
+            Assert.assertTrue(readReplica.isUsingReplica());
+            ResponseEntity<String> response = restTemplate.exchange(
+                    "/adresse/adresseoplysninger/?adresse=6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a",
+                    HttpMethod.GET,
+                    httpEntity,
+                    String.class
+            );
+            Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+            Assert.assertEquals("6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a", objectMapper.readTree(response.getBody()).get("uuid").asText());
+
+            // A query that fails on the replica is retried on the primary, and the replica is taken out of rotation
+            try (Connection replica = DriverManager.getConnection(replicaUrl, "test", "test"); Statement statement = replica.createStatement()) {
+                statement.execute("DROP ALL OBJECTS");
+            }
+            Assert.assertTrue(readReplica.isUsingReplica());
+            response = restTemplate.exchange(
+                    "/adresse/hus/?vej=e4dc6c09-baae-40b1-8696-57771b2f7a81",
+                    HttpMethod.GET,
+                    httpEntity,
+                    String.class
+            );
+            Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+            Assert.assertEquals("05", objectMapper.readTree(response.getBody()).get(0).get("husnummer").asText());
+            Assert.assertFalse(readReplica.isUsingReplica());
+
+            // A broken replica stays out of rotation, and queries fall back to the primary
+            readReplica.checkLag();
+            Assert.assertFalse(readReplica.isUsingReplica());
+            response = restTemplate.exchange(
+                    "/adresse/adresseoplysninger/?adresse=6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a",
+                    HttpMethod.GET,
+                    httpEntity,
+                    String.class
+            );
+            Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+            Assert.assertEquals("6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a", objectMapper.readTree(response.getBody()).get("uuid").asText());
+
+            // A closed pool is no longer listed
+            Assert.assertTrue(ConnectionPools.getMetrics().containsKey("adresseservice-replica"));
+            readReplica.disconnect();
+            Assert.assertFalse(ConnectionPools.getMetrics().containsKey("adresseservice-replica"));
+        } finally {
+            readReplica.disconnect();
+        }
+    }
+
+    @Test
+    public void testFragmentCache() throws IOException {
+        UUID address = UUID.fromString("6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a");
+        UUID road = UUID.fromString("e4dc6c09-baae-40b1-8696-57771b2f7a81");
+        String expected = "{\"uuid\":\"6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a\",\"husnummer\":\"05\",\"b_nummer\":\"293\",\"vej_uuid\":\"e4dc6c09-baae-40b1-8696-57771b2f7a81\",\"vejkode\":1,\"vejnavn\":\"Aadarujuup Aqquserna\",\"lokalitet\":\"4d9cd2a0-89f1-4acc-a259-4fd139006d87\",\"lokalitetsnavn\":\"Paamiut\",\"kommunekode\":955,\"etage\":\"1\",\"doer\":null,\"bolig\":null}";
+        HttpEntity<String> httpEntity = new HttpEntity<String>("", new HttpHeaders());
+        fragmentCache.setEnabled(true);
+        try {
+            // First request builds the fragment, second is served from it
+            for (int i = 0; i < 2; i++) {
+                ResponseEntity<String> response = restTemplate.exchange(
+                        "/adresse/adresseoplysninger/?adresse=" + address,
+                        HttpMethod.GET,
+                        httpEntity,
+                        String.class
+                );
+                Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+                Assert.assertEquals(objectMapper.readTree(expected), objectMapper.readTree(response.getBody()));
+                Assert.assertNotNull(fragmentCache.get("adresseoplysninger", address));
+            }
+
+            // Evicting the road also evicts the address details that show it
+            fragmentCache.evict(road);
+            Assert.assertNull(fragmentCache.get("adresseoplysninger", address));
+
+            // A fragment built from data read before an eviction is not cached
+            long generation = fragmentCache.getGeneration();
+            fragmentCache.evict(road);
+            fragmentCache.put("test", address, new byte[]{'1'}, Collections.singleton(road), generation);
+            Assert.assertNull(fragmentCache.get("test", address));
+
+            // Beyond the maximum number of entities, the entities cached first are dropped
+            Object maxEntities = ReflectionTestUtils.getField(fragmentCache, "maxEntities");
+            ReflectionTestUtils.setField(fragmentCache, "maxEntities", 2);
+            try {
+                List<UUID> uuids = Arrays.asList(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+                for (UUID uuid : uuids) {
+                    fragmentCache.put("test", uuid, new byte[]{'1'}, Collections.emptySet(), fragmentCache.getGeneration());
+                }
+                Assert.assertNull(fragmentCache.get("test", uuids.get(0)));
+                Assert.assertNotNull(fragmentCache.get("test", uuids.get(1)));
+                Assert.assertNotNull(fragmentCache.get("test", uuids.get(2)));
+            } finally {
+                ReflectionTestUtils.setField(fragmentCache, "maxEntities", maxEntities);
+                fragmentCache.clear();
+            }
+
+            for (int i = 0; i < 2; i++) {
+                ResponseEntity<String> response = restTemplate.exchange(
+                        "/adresse/adresse/?vej=" + road,
+                        HttpMethod.GET,
+                        httpEntity,
+                        String.class
+                );
+                Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+                JsonNode addresses = objectMapper.readTree(response.getBody());
+                Assert.assertEquals(2, addresses.size());
+                Assert.assertEquals("293", addresses.get(0).get("b_nummer").asText());
+            }
+
+            for (int i = 0; i < 2; i++) {
+                ResponseEntity<String> response = restTemplate.exchange(
+                        "/adresse/vej/?lokalitet=4d9cd2a0-89f1-4acc-a259-4fd139006d87",
+                        HttpMethod.GET,
+                        httpEntity,
+                        String.class
+                );
+                Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+                JsonNode roads = objectMapper.readTree(response.getBody());
+                Assert.assertEquals(1, roads.size());
+                Assert.assertEquals(road.toString(), roads.get(0).get("uuid").asText());
+            }
+        } finally {
+            fragmentCache.setEnabled(false);
+        }
+    }
+
+    @Test
+    public void testBatchTimeout() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean first = new AtomicBoolean(true);
+        // The first batch hangs until released
+        MicroBatcher<String, String> batcher = new MicroBatcher<>("test-batching", 500, 64, 1, 100, keys -> {
+            if (first.getAndSet(false)) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            HashMap<String, String> results = new HashMap<>();
+            for (String key : keys) {
+                results.put(key, key.toUpperCase());
+            }
+            return results;
+        });
+        try {
+            long start = System.nanoTime();
+            Assert.assertEquals("A", batcher.get("a"));
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        } finally {
+            release.countDown();
+            batcher.stop();
+        }
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        HashMap<String, String> expected = new HashMap<>();
+        expected.put("6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a", "{\"uuid\":\"6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a\",\"husnummer\":\"05\",\"b_nummer\":\"293\",\"vej_uuid\":\"e4dc6c09-baae-40b1-8696-57771b2f7a81\",\"vejkode\":1,\"vejnavn\":\"Aadarujuup Aqquserna\",\"lokalitet\":\"4d9cd2a0-89f1-4acc-a259-4fd139006d87\",\"lokalitetsnavn\":\"Paamiut\",\"kommunekode\":955,\"etage\":\"1\",\"doer\":null,\"bolig\":null}");
+        expected.put("6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3b", "{\"uuid\":\"6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3b\",\"husnummer\":\"05\",\"b_nummer\":\"293\",\"vej_uuid\":\"e4dc6c09-baae-40b1-8696-57771b2f7a81\",\"vejkode\":1,\"vejnavn\":\"Aadarujuup Aqquserna\",\"lokalitet\":\"4d9cd2a0-89f1-4acc-a259-4fd139006d87\",\"lokalitetsnavn\":\"Paamiut\",\"kommunekode\":955,\"etage\":\"2\",\"doer\":null,\"bolig\":true}");
+        expected.put("01234567-89ab-cdef-0123-456789abcdef", "{}");
+        ArrayList<String> addresses = new ArrayList<>(expected.keySet());
+
+        adresseService.setBatchingEnabled(true);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            // Concurrent requests for different addresses, and for the same address, are resolved in shared batches
+            ArrayList<Future<ResponseEntity<String>>> responses = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                String address = addresses.get(i % addresses.size());
+                responses.add(executor.submit(() -> restTemplate.exchange(
+                        "/adresse/adresseoplysninger/?adresse=" + address,
+                        HttpMethod.GET,
+                        new HttpEntity<String>("", new HttpHeaders()),
+                        String.class
+                )));
+            }
+            for (int i = 0; i < responses.size(); i++) {
+                ResponseEntity<String> response = responses.get(i).get(30, TimeUnit.SECONDS);
+                Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+                Assert.assertEquals(
+                        objectMapper.readTree(expected.get(addresses.get(i % addresses.size()))),
+                        objectMapper.readTree(response.getBody())
+                );
+            }
+
+            // Requests selecting fields bypass the batcher, and only resolve the selected fields
+            ResponseEntity<String> response = restTemplate.exchange(
+                    "/adresse/adresseoplysninger/?adresse=6921fbb1-ddd7-4c7c-bb98-bbf63ace6a3a&felter=vejkode,kommunekode",
+                    HttpMethod.GET,
+                    new HttpEntity<String>("", new HttpHeaders()),
+                    String.class
+            );
+            Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+            Assert.assertEquals(
+                    objectMapper.readTree("{\"vejkode\":1,\"kommunekode\":955}"),
+                    objectMapper.readTree(response.getBody())
+            );
+        } finally {
+            executor.shutdownNow();
+            adresseService.setBatchingEnabled(false);
+        }
+    }
+
+
     @Before
     public void load() throws IOException, DataFordelerException {
         Session session = sessionManager.getSessionFactory().openSession();